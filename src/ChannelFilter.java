@@ -0,0 +1,55 @@
+// Which MIDI channels' playback reaches the visuals.  Events from muted
+// channels are dropped before any per-note work is done; every other
+// channel's notes are tracked separately, so one channel letting go of a
+// key doesn't turn off the same key held on another.
+//
+// By default every channel is heard except percussion - drum notes aren't
+// pitches, and only clutter the picture.
+//
+// The channels that are heard are kept as a single mask, which is replaced
+// (never changed) whenever a channel is muted or unmuted, so a player can
+// fetch it once and test events against it without locking.
+class ChannelFilter
+{
+   // MIDI channels.
+   static public final int CHANNELS = PlaybackEvents.CHANNELS;
+
+   // Channels that aren't muted, as bits.
+   private volatile int channelMask;
+
+   public ChannelFilter ()
+   {
+      channelMask = ((1 << CHANNELS) - 1) &
+                    ~(1 << SynthService.PERCUSSION_CHANNEL);
+   }
+
+   public synchronized void setMuted (int channel, boolean muted)
+   {
+      if (channel < 0 || channel >= CHANNELS)
+         return;
+      if (muted)
+         channelMask &= ~(1 << channel);
+      else
+         channelMask |= 1 << channel;
+   }
+
+   public void mute (int channel)
+   {
+      setMuted (channel, true);
+   }
+
+   public void unmute (int channel)
+   {
+      setMuted (channel, false);
+   }
+
+   public boolean isMuted (int channel)
+   {
+      return (channelMask & (1 << channel)) == 0;
+   }
+
+   public int getChannelMask ()
+   {
+      return channelMask;
+   }
+}
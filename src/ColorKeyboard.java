@@ -1,9 +1,69 @@
 import javax.swing.JFrame;
+import java.io.File;
 
 // Entry point for project.
 public class ColorKeyboard {
+   static public final String USAGE =
+      "Usage: ColorKeyboard [-render <file.mid> <out.wav> <frames> " +
+      "[-fps <n>] [-size <width>x<height>] [-seed <n>] " +
+      "[-raster java2d|software]]\n" +
+      "       ColorKeyboard -bench <file.mid> [-engine <class>] " +
+      "[-fps <n>] [-size <width>x<height>] [-raster java2d|software] " +
+      "[-mute <channel,...>|none]\n" +
+      "       ColorKeyboard -bench-events <file.mid>|-synthetic " +
+      "[-tracks <n>] [-notes <n>] [-fps <n>] [-passes <n>] " +
+      "[-mute <channel,...>|none]\n" +
+      "       ColorKeyboard -bench-polygons [-polygons <n>] " +
+      "[-frames <n>] [-threads <n>] [-passes <n>]\n" +
+      "       ColorKeyboard -check queue [-producers <n>] [-events <n>] " +
+      "[-capacity <n>]\n" +
+      "       ColorKeyboard -check allocation [-polygons <n>] " +
+      "[-rounds <n>] [-frames <n>]\n" +
+      "       ColorKeyboard -check raster [-lines <n>] [-frames <n>] " +
+      "[-size <width>x<height>] [-seed <n>]\n" +
+      "       ColorKeyboard -check metronome [-bpm <n>] " +
+      "[-subdivisions <n>] [-minutes <n>]\n" +
+      "       ColorKeyboard -check seek [-notes <n>] [-seeks <n>] " +
+      "[-seed <n>]\n" +
+      "       ColorKeyboard -check input [-notes <n>] [-seed <n>]\n" +
+      "       ColorKeyboard -check cache [-files <n>] [-notes <n>] " +
+      "[-seed <n>]\n" +
+      "       ColorKeyboard -check frames [-seconds <n>] [-stall <n>]\n" +
+      "   <frames> is a directory for PNG frames, or a file ending in " +
+      "\".raw\" for raw RGB24 video.";
+
    public static void main (String[] args)
    {
+      // Render a file offline instead of opening a window?
+      if (args.length > 0 && args[0].equals ("-render")) {
+         render (args);
+         return;
+      }
+
+      // Benchmark a visualizer engine?
+      if (args.length > 0 && args[0].equals ("-bench")) {
+         bench (args);
+         return;
+      }
+
+      // Benchmark event dispatch?
+      if (args.length > 0 && args[0].equals ("-bench-events")) {
+         benchEvents (args);
+         return;
+      }
+
+      // Benchmark moving polygons on several threads?
+      if (args.length > 0 && args[0].equals ("-bench-polygons")) {
+         benchPolygons (args);
+         return;
+      }
+
+      // Run a self-check?
+      if (args.length > 0 && args[0].equals ("-check")) {
+         check (args);
+         return;
+      }
+
       // Create a piano frame and center it.  The piano keyboard will be
       // forcused automatically.
       PianoFrame piano = new PianoFrame ();
@@ -11,4 +71,171 @@ public class ColorKeyboard {
       piano.setLocationRelativeTo (null);
       piano.setVisible (true);
    }
+
+   static private void bench (String[] args)
+   {
+      if (args.length < 2)
+         usage ();
+
+      try {
+         // Read options.
+         Options options = new Options (args, 2);
+         VisualizerBench bench = new VisualizerBench ();
+         bench.setEngine (options.getString ("engine",
+                                             VisualizerBench.DEFAULT_ENGINE));
+         bench.setSoftwareRendering (isSoftware (
+            options.getString ("raster", "java2d")));
+         String mute = options.getString ("mute", null);
+         if (mute != null)
+            setMuted (bench.getChannelFilter (), mute);
+         bench.setFrameRate (options.getInt ("fps",
+                                             VisualizerBench.DEFAULT_FPS));
+         int[] size = options.getSize ("size", VisualizerBench.DEFAULT_WIDTH,
+                                       VisualizerBench.DEFAULT_HEIGHT);
+         bench.setSize (size[0], size[1]);
+         options.finish ();
+         bench.run (args[1]);
+      }
+      catch (Exception e) {
+         System.out.println (e);
+         usage ();
+      }
+      System.exit (0);
+   }
+
+   static private void benchEvents (String[] args)
+   {
+      if (args.length < 2)
+         usage ();
+
+      try {
+         // Read options.
+         Options options = new Options (args, 2);
+         EventBench bench = new EventBench ();
+         bench.setSyntheticSize (
+            options.getInt ("tracks", EventBench.DEFAULT_TRACKS),
+            options.getInt ("notes", EventBench.DEFAULT_NOTES));
+         bench.setFrameRate (options.getInt ("fps", EventBench.DEFAULT_FPS));
+         bench.setPasses (options.getInt ("passes",
+                                          EventBench.DEFAULT_PASSES));
+         String mute = options.getString ("mute", null);
+         if (mute != null)
+            setMuted (bench.getChannelFilter (), mute);
+         options.finish ();
+         if (args[1].equals ("-synthetic"))
+            bench.runSynthetic ();
+         else
+            bench.run (args[1]);
+      }
+      catch (Exception e) {
+         System.out.println (e);
+         usage ();
+      }
+      System.exit (0);
+   }
+
+   static private void benchPolygons (String[] args)
+   {
+      try {
+         // Read options.
+         Options options = new Options (args, 1);
+         PolygonBench bench = new PolygonBench ();
+         bench.setPolygons (options.getInt ("polygons",
+                                            PolygonBench.DEFAULT_POLYGONS));
+         bench.setFrames (options.getInt ("frames",
+                                          PolygonBench.DEFAULT_FRAMES));
+         bench.setPasses (options.getInt ("passes",
+                                          PolygonBench.DEFAULT_PASSES));
+         bench.setThreads (options.getInt ("threads",
+            Runtime.getRuntime().availableProcessors ()));
+         options.finish ();
+         bench.run ();
+      }
+      catch (Exception e) {
+         System.out.println (e);
+         usage ();
+      }
+      System.exit (0);
+   }
+
+   static private void check (String[] args)
+   {
+      if (args.length < 2)
+         usage ();
+
+      // Exits with 1 if the check fails, and 2 if it couldn't be run.
+      boolean passed = false;
+      try {
+         passed = SelfCheck.run (args[1], new Options (args, 2));
+      }
+      catch (Exception e) {
+         System.out.println (e);
+         System.out.println (USAGE);
+         System.exit (2);
+      }
+      System.exit (passed ? 0 : 1);
+   }
+
+   static private void render (String[] args)
+   {
+      if (args.length < 4)
+         usage ();
+
+      try {
+         // Read options.
+         Options options = new Options (args, 4);
+         OfflineRenderer renderer = new OfflineRenderer ();
+         renderer.setFrameRate (options.getInt ("fps",
+                                                OfflineRenderer.DEFAULT_FPS));
+         renderer.setSeed (options.getLong ("seed",
+                                            OfflineRenderer.DEFAULT_SEED));
+         renderer.setSoftwareRendering (isSoftware (
+            options.getString ("raster", "java2d")));
+         int[] size = options.getSize ("size", OfflineRenderer.DEFAULT_WIDTH,
+                                       OfflineRenderer.DEFAULT_HEIGHT);
+         renderer.setSize (size[0], size[1]);
+         options.finish ();
+
+         // Render, and report how long it took.
+         long start = System.nanoTime ();
+         renderer.render (args[1], new File (args[2]), new File (args[3]));
+         System.out.println ("Rendered in " +
+            (System.nanoTime () - start) / 1000000 + "ms");
+      }
+      catch (Exception e) {
+         System.out.println (e);
+         usage ();
+      }
+      System.exit (0);
+   }
+
+   static private void usage ()
+   {
+      System.out.println (USAGE);
+      System.exit (1);
+   }
+
+   static private void setMuted (ChannelFilter filter, String channels)
+   {
+      // Mute exactly the channels listed (numbered from 1, as usual for
+      // MIDI), and hear every other channel.
+      boolean[] muted = new boolean[ChannelFilter.CHANNELS];
+      if (!channels.equals ("none")) {
+         String[] list = channels.split (",");
+         for (int i = 0; i < list.length; i++)
+            muted[Integer.parseInt (list[i].trim ()) - 1] = true;
+      }
+      for (int channel = 0; channel < ChannelFilter.CHANNELS; channel++)
+         filter.setMuted (channel, muted[channel]);
+   }
+
+   static private boolean isSoftware (String raster)
+   {
+      // Which way should visualizer frames be drawn?
+      if (raster.equals ("software"))
+         return true;
+      if (raster.equals ("java2d"))
+         return false;
+      throw new IllegalArgumentException (raster);
+   }
 }
@@ -0,0 +1,264 @@
+import javax.sound.midi.*;
+import java.util.Random;
+
+// Measures how fast playback events can be dispatched, comparing the merged
+// PlaybackEvents table against the old way of polling every Track on every
+// frame.  Both play the whole file one frame at a time on a virtual clock,
+// into the same key and pedal bookkeeping, with no synthesizer.  Results
+// are in events dispatched per microsecond.
+//
+// The table is also played through a NoteTracker into a PolygonVisualizer,
+// as -bench plays it, once with every channel heard and once through our
+// ChannelFilter, to show what filtering costs or saves per event.
+//
+// Files can be loaded, or made up: a synthetic file has many tracks of
+// short, overlapping notes and pedal changes, to show how each approach
+// copes with dense material.
+class EventBench
+{
+   // Defaults.
+   static public final int DEFAULT_FPS    = 60;
+   static public final int DEFAULT_PASSES = 5;
+   static public final int DEFAULT_TRACKS = 64;
+   static public final int DEFAULT_NOTES  = 20000;
+
+   // Settings.
+   private int fps    = DEFAULT_FPS;
+   private int passes = DEFAULT_PASSES;
+   private int tracks = DEFAULT_TRACKS;
+   private int notes  = DEFAULT_NOTES;
+   private ChannelFilter filter = new ChannelFilter ();
+
+   public void setFrameRate (int fps)
+   {
+      this.fps = Math.max (1, fps);
+   }
+
+   public void setPasses (int passes)
+   {
+      // The fastest pass is reported, so the JIT has time to warm up.
+      this.passes = Math.max (1, passes);
+   }
+
+   public void setSyntheticSize (int tracks, int notes)
+   {
+      // Notes are per track.
+      this.tracks = Math.max (1, tracks);
+      this.notes  = Math.max (1, notes);
+   }
+
+   public ChannelFilter getChannelFilter ()
+   {
+      // Which channels the filtered run hears.
+      return filter;
+   }
+
+   public void run (String midiFile) throws Exception
+   {
+      run (midiFile, MidiLoader.load (midiFile));
+   }
+
+   public void runSynthetic () throws InvalidMidiDataException
+   {
+      run ("synthetic, " + tracks + " tracks of " + notes + " notes",
+           makeSequence ());
+   }
+
+   private void run (String name, Sequence sequence)
+   {
+      PlaybackEvents events = new PlaybackEvents (sequence);
+      long last = (events.getLengthMicros () * fps + 999999) / 1000000;
+
+      // Every channel heard, for comparison with our filter.
+      ChannelFilter all = new ChannelFilter ();
+      for (int channel = 0; channel < ChannelFilter.CHANNELS; channel++)
+         all.unmute (channel);
+
+      // Alternate between them all so none gets a warmer machine.
+      long trackTime = Long.MAX_VALUE, tableTime = Long.MAX_VALUE;
+      long allTime = Long.MAX_VALUE, filterTime = Long.MAX_VALUE;
+      long trackEvents = 0, tableEvents = 0, allEvents = 0, filterEvents = 0;
+      for (int pass = 0; pass < passes; pass++) {
+         Keys keys = new Keys ();
+         long start = System.nanoTime ();
+         trackEvents = pollTracks (sequence, events, last, keys);
+         trackTime = Math.min (trackTime, System.nanoTime () - start);
+
+         keys = new Keys ();
+         start = System.nanoTime ();
+         tableEvents = walkTable (events, last, keys);
+         tableTime = Math.min (tableTime, System.nanoTime () - start);
+
+         NoteTracker tracker =
+            new NoteTracker (new PolygonVisualizer (0), all);
+         start = System.nanoTime ();
+         allEvents = trackNotes (events, last, tracker);
+         allTime = Math.min (allTime, System.nanoTime () - start);
+
+         tracker = new NoteTracker (new PolygonVisualizer (0), filter);
+         start = System.nanoTime ();
+         filterEvents = trackNotes (events, last, tracker);
+         filterTime = Math.min (filterTime, System.nanoTime () - start);
+      }
+
+      // Report.
+      System.out.println (name + ", " + events.size () + " events, " +
+                          last + " frames at " + fps + "fps");
+      report ("tracks: ", trackEvents, trackTime);
+      report ("table:  ", tableEvents, tableTime);
+      System.out.println ("Through a NoteTracker, " +
+                          countHeard (events, all.getChannelMask ()) +
+                          " events heard unfiltered, " +
+                          countHeard (events, filter.getChannelMask ()) +
+                          " filtered");
+      report ("unfiltered: ", allEvents, allTime);
+      report ("filtered:   ", filterEvents, filterTime);
+   }
+
+   private long pollTracks (Sequence sequence, PlaybackEvents events,
+                            long last, Keys keys)
+   {
+      // The old UpdateTask loop: every frame, look at every track from
+      // where it left off, and decode each message as it comes.
+      Track[] tracks = sequence.getTracks ();
+      int[] trackEvent = new int[tracks.length];
+      long dispatched = 0;
+      for (long frame = 0; frame < last; frame++) {
+         long curPos = events.microsToTick ((frame + 1) * 1000000l / fps - 1);
+         for (int i = 0; i < tracks.length; i++) {
+            int j;
+            for (j = trackEvent[i]; j < tracks[i].size(); j++) {
+               MidiEvent event = tracks[i].get(j);
+               if (event.getTick() > curPos)
+                  break;
+               MidiMessage message = event.getMessage();
+               if (!(message instanceof ShortMessage))
+                  continue;
+               ShortMessage sm = (ShortMessage) message;
+               keys.event (sm.getCommand(), sm.getChannel(), sm.getData1(),
+                           sm.getData2());
+               dispatched++;
+            }
+            trackEvent[i] = j;
+         }
+      }
+      return dispatched;
+   }
+
+   private long walkTable (PlaybackEvents events, long last, final Keys keys)
+   {
+      // The same, through a PlaybackEngine with no receiver.
+      PlaybackEngine engine = new PlaybackEngine (null,
+         new PlaybackEngine.Listener () {
+            public void playbackEvent (int message)
+            {
+               keys.event (PlaybackEvents.getCommand (message),
+                           PlaybackEvents.getChannel (message),
+                           PlaybackEvents.getData1 (message),
+                           PlaybackEvents.getData2 (message));
+            }
+         }, false);
+      engine.load (events);
+      engine.start (0);
+      long dispatched = 0;
+      for (long frame = 0; frame < last; frame++)
+         dispatched += engine.advance ((frame + 1) * 1000000l / fps - 1);
+      return dispatched;
+   }
+
+   private long trackNotes (PlaybackEvents events, long last,
+                            NoteTracker tracker)
+   {
+      // Play the table into a tracker's visualizer, the way -bench does.
+      // The visualizer is never stepped or drawn, so only the notes
+      // themselves cost anything.
+      PlaybackEngine engine = new PlaybackEngine (null, tracker, false);
+      engine.load (events);
+      engine.start (0);
+      long dispatched = 0;
+      for (long frame = 0; frame < last; frame++)
+         dispatched += engine.advance ((frame + 1) * 1000000l / fps - 1);
+      return dispatched;
+   }
+
+   static private int countHeard (PlaybackEvents events, int channelMask)
+   {
+      // How many events are on channels in 'channelMask'.
+      int heard = 0;
+      for (int i = 0; i < events.size (); i++) {
+         int message = events.getMessage (i);
+         if (message != PlaybackEvents.SYSTEM_RESET &&
+             (channelMask & (1 << PlaybackEvents.getChannel (message))) != 0)
+            heard++;
+      }
+      return heard;
+   }
+
+   static private void report (String label, long dispatched, long nanos)
+   {
+      double perMicro = dispatched * 1000.0 / Math.max (1, nanos);
+      System.out.println ("   " + label + dispatched + " events in " +
+                          nanos / 1000 + "us, " +
+                          Math.round (perMicro * 100) / 100.0 +
+                          " events/us");
+   }
+
+   private Sequence makeSequence () throws InvalidMidiDataException
+   {
+      // Every track plays on its own channel (other than percussion) at
+      // about eight notes a second, each held for up to a second, with the
+      // pedal going down and up every few seconds.  The same seed always
+      // makes the same file.
+      Random random = new Random (0);
+      Sequence sequence = new Sequence (Sequence.PPQ, 480);
+      for (int i = 0; i < tracks; i++) {
+         Track track = sequence.createTrack ();
+         int channel = i % 15;
+         if (channel >= 9)
+            channel++;
+         long tick = random.nextInt (480);
+         for (int n = 0; n < notes; n++) {
+            int key = 21 + random.nextInt (88);
+            long length = 1 + random.nextInt (960);
+            track.add (new MidiEvent (new ShortMessage (
+               ShortMessage.NOTE_ON, channel, key, 1 + random.nextInt (127)),
+               tick));
+            track.add (new MidiEvent (new ShortMessage (
+               ShortMessage.NOTE_OFF, channel, key, 0), tick + length));
+            if (n % 32 == 0)
+               track.add (new MidiEvent (new ShortMessage (
+                  ShortMessage.CONTROL_CHANGE, channel, 0x40,
+                  (n % 64 == 0) ? 0x7F : 0), tick));
+            tick += random.nextInt (240);
+         }
+      }
+      return sequence;
+   }
+
+   // Keeps track of held keys and the pedal, the way Piano does, so both
+   // approaches do the same useful work with every event.
+   static private class Keys
+   {
+      private int[]   held  = new int[Piano.TONE_RANGE];
+      private boolean pedal = false;
+
+      public void event (int command, int channel, int data1, int data2)
+      {
+         // Velocity zero is really a NOTE_OFF.
+         if (command == ShortMessage.NOTE_ON && data2 == 0)
+            command = ShortMessage.NOTE_OFF;
+         switch (command) {
+            case ShortMessage.NOTE_ON:
+               held[data1] |= 1 << channel;
+               break;
+            case ShortMessage.NOTE_OFF:
+               held[data1] &= ~(1 << channel);
+               break;
+            case ShortMessage.CONTROL_CHANGE:
+               if (data1 == 0x40)
+                  pedal = (data2 >= 0x40);
+               break;
+         }
+      }
+   }
+}
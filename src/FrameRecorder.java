@@ -0,0 +1,207 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+
+// Keeps the most recent visualizer frames in a ring of preallocated
+// rasters, like an instant replay.  Recording a frame is just an array
+// copy.  Saving hands a range of frames to a background thread, which
+// writes them out while recording carries on around them.
+//
+// The ring holds as many frames as fit in the memory limit.  Frames being
+// saved are never overwritten: if recording catches up with the saver,
+// new frames are dropped until it's done.  Each save reports how many
+// frames it wrote and how many were dropped while it was writing them.
+class FrameRecorder
+{
+   // Default memory limit, in bytes.
+   static public final long DEFAULT_MEMORY_LIMIT = 128l << 20;
+
+   // Ring of frames.  Frame number 'n' is in slot (n % frames.length) and
+   // was recorded at times[n % frames.length] (System.nanoTime()).
+   private long    memoryLimit;
+   private int     width = 0, height = 0;
+   private int[][] frames = null;
+   private long[]  times  = null;
+
+   // Number of frames ever recorded, which is also the next frame number.
+   private volatile long recorded = 0;
+   private volatile long dropped  = 0;
+
+   // Frames being saved: 'pinFirst' through 'pinLast'.  'pinFirst' moves
+   // forward as each frame is written so its slot can be reused.
+   private volatile boolean saving   = false;
+   private volatile long    pinFirst = 0;
+   private volatile long    pinLast  = -1;
+
+   public FrameRecorder ()
+   {
+      this (DEFAULT_MEMORY_LIMIT);
+   }
+
+   public FrameRecorder (long memoryLimit)
+   {
+      this.memoryLimit = Math.max (1, memoryLimit);
+   }
+
+   public void record (int[] pixels, int width, int height)
+   {
+      // Our ring is sized for one frame size; start over if it changes.
+      // That's the only time we allocate.
+      if (width != this.width || height != this.height) {
+         synchronized (this) {
+            if (saving) {
+               dropped++;
+               return;
+            }
+            allocate (width, height);
+         }
+      }
+
+      // Don't overwrite anything that's waiting to be saved.
+      long n = recorded;
+      long old = n - frames.length;
+      if (saving && old >= pinFirst && old <= pinLast) {
+         dropped++;
+         return;
+      }
+
+      // Copy the frame in, then publish it.
+      int slot = (int) (n % frames.length);
+      System.arraycopy (pixels, 0, frames[slot], 0, width * height);
+      times[slot] = System.nanoTime ();
+      recorded = n + 1;
+   }
+
+   private void allocate (int width, int height)
+   {
+      // Free the old ring before making the new one.
+      frames = null;
+      times  = null;
+      long frameBytes = (long) width * height * 4;
+      int count = (int) Math.max (1, Math.min (Integer.MAX_VALUE,
+                                               memoryLimit / frameBytes));
+      frames = new int[count][width * height];
+      times  = new long[count];
+      this.width  = width;
+      this.height = height;
+      recorded = 0;
+   }
+
+   public synchronized boolean save (File path, float seconds)
+   {
+      // Only one save at a time, and only once we have something.
+      if (saving || recorded == 0)
+         return false;
+
+      // Pin everything while we work out what to save, so nothing more is
+      // overwritten.
+      pinFirst = 0;
+      pinLast  = Long.MAX_VALUE;
+      saving   = true;
+
+      // Find the oldest frame within 'seconds' of the newest.  The oldest
+      // frame in the ring is skipped, since a frame that was being
+      // recorded as we pinned may be overwriting it.
+      int[][] ring = frames;
+      long    last   = recorded - 1;
+      long    oldest = Math.max (0, last - ring.length + 2);
+      long    since  = times[(int) (last % ring.length)] -
+                       (long) (seconds * 1000000000.0);
+      long    first  = last;
+      while (first > oldest && times[(int) ((first - 1) % ring.length)] >=
+                               since)
+         first--;
+
+      // Narrow the pin to that range, then write it out in the background.
+      pinFirst = first;
+      pinLast  = last;
+      Thread thread = new Thread (new SaveTask (path, ring, width, height,
+                                                dropped),
+                                  "Frame recorder");
+      thread.setDaemon (true);
+      thread.start ();
+      return true;
+   }
+
+   // Writes the pinned frames, releasing each one as it goes.
+   private class SaveTask implements Runnable
+   {
+      private File    path;
+      private int[][] ring;
+      private int     width, height;
+      private long    droppedBefore;
+
+      public SaveTask (File path, int[][] ring, int width, int height,
+                       long droppedBefore)
+      {
+         this.path   = path;
+         this.ring   = ring;
+         this.width  = width;
+         this.height = height;
+         this.droppedBefore = droppedBefore;
+      }
+
+      public void run ()
+      {
+         try {
+            BufferedImage image = new BufferedImage (width, height,
+               BufferedImage.TYPE_INT_RGB);
+            int[] pixels = ((DataBufferInt) image.getRaster ()
+                            .getDataBuffer ()).getData ();
+            FrameWriter writer = new FrameWriter (path, image);
+            long first = pinFirst;
+            for (long n = first; n <= pinLast; n++) {
+               System.arraycopy (ring[(int) (n % ring.length)], 0, pixels, 0,
+                                 pixels.length);
+               pinFirst = n + 1;
+               writer.write (n - first);
+            }
+            writer.close ();
+
+            // Report.  Anything dropped since we started was dropped to
+            // keep clear of us.
+            System.out.println ("Saved " + (pinLast - first + 1) +
+                                " frames to " + path + ", " +
+                                (dropped - droppedBefore) +
+                                " dropped while saving");
+         }
+         catch (Exception e) {
+            System.out.println (e);
+         }
+         saving = false;
+      }
+   }
+
+   public boolean isSaving ()
+   {
+      return saving;
+   }
+
+   public void setMemoryLimit (long memoryLimit)
+   {
+      // Takes effect the next time the ring is made.
+      this.memoryLimit = Math.max (1, memoryLimit);
+   }
+
+   public long getMemoryLimit ()
+   {
+      return memoryLimit;
+   }
+
+   public long getMemoryUsage ()
+   {
+      int[][] ring = frames;
+      return (ring == null) ? 0 : (long) ring.length * width * height * 4;
+   }
+
+   public int getCapacity ()
+   {
+      int[][] ring = frames;
+      return (ring == null) ? 0 : ring.length;
+   }
+
+   public long getRecordedFrames ()
+   {
+      return recorded;
+   }
+}
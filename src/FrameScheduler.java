@@ -0,0 +1,155 @@
+import java.util.concurrent.locks.LockSupport;
+
+// Calls a frame routine at a steady rate on its own thread, using
+// System.nanoTime() for pacing.  Frames are scheduled against absolute
+// deadlines so they don't drift, and if we fall behind (GC pause, busy
+// machine) we skip ahead rather than running a burst of late frames.  When
+// the frame routine reports it's idle, the thread parks until wake().
+// Each frame is told how much time has really passed since the last one.
+// Live input that can't wait for the next deadline can ask to be polled
+// right away with wakeNow(); the frame itself still waits its turn.
+class FrameScheduler implements Runnable
+{
+   // Something that's run once per frame.
+   interface Frame
+   {
+      // Advance by 'interval' seconds.  This is normally one period, but
+      // is longer after a late or skipped frame.
+      void frame (float interval);
+
+      // Return 'true' if nothing will change until the next wake().
+      boolean isIdle ();
+
+      // Handle input that can't wait for the next frame.  Anything paced
+      // by frames (animation, drawing) should be left for frame().
+      void poll ();
+   }
+
+   // What we run, and how often.
+   private Frame  frame;
+   private long   period;
+   private Thread thread;
+
+   // Thread state.
+   private volatile boolean running  = false;
+   private volatile boolean wakeFlag = false;
+   private volatile boolean urgent   = false;
+
+   // Frame timing statistics, in nanoseconds.
+   private volatile long frames  = 0;
+   private volatile long skipped = 0;
+   private volatile long maxFrameTime   = 0;
+   private volatile long totalFrameTime = 0;
+
+   public FrameScheduler (Frame frame, long periodNanos, String name)
+   {
+      this.frame    = frame;
+      this.period   = periodNanos;
+
+      // Our thread shouldn't keep the program alive on its own.
+      thread = new Thread (this, name);
+      thread.setDaemon (true);
+   }
+
+   public void start ()
+   {
+      running = true;
+      thread.start ();
+   }
+
+   public void stop ()
+   {
+      running = false;
+      LockSupport.unpark (thread);
+   }
+
+   public void wake ()
+   {
+      // Make sure the thread doesn't park, or stops parking if it is.
+      wakeFlag = true;
+      LockSupport.unpark (thread);
+   }
+
+   public void wakeNow ()
+   {
+      // Like wake(), but poll the frame routine immediately rather than
+      // waiting for the next deadline.
+      urgent   = true;
+      wakeFlag = true;
+      LockSupport.unpark (thread);
+   }
+
+   public void run ()
+   {
+      // 'last' is when the previous frame ran.  Pretend the first one ran a
+      // period ago.
+      long next = System.nanoTime ();
+      long last = next - period;
+      while (running) {
+         // Wait for our next deadline, polling whenever we're wanted
+         // right away.
+         long now = System.nanoTime ();
+         if (now < next) {
+            if (urgent) {
+               urgent = false;
+               frame.poll ();
+            }
+            else
+               LockSupport.parkNanos (this, next - now);
+            continue;
+         }
+         urgent = false;
+
+         // If we're more than a frame late, drop the missed frames instead
+         // of bunching them up.  The deadlines stay where they were, so
+         // skipping doesn't make us drift either.
+         if (now - next >= period) {
+            long missed = (now - next) / period;
+            skipped += missed;
+            next    += missed * period;
+         }
+
+         // Run the frame and record how long it took.
+         frame.frame ((float) (now - last) / 1000000000f);
+         last = now;
+         long time = System.nanoTime () - now;
+         totalFrameTime += time;
+         if (time > maxFrameTime)
+            maxFrameTime = time;
+         frames++;
+         next += period;
+
+         // If there's nothing to do, sleep until someone wakes us.  The flag
+         // is cleared before checking so a wake() that races with isIdle()
+         // is never lost.
+         wakeFlag = false;
+         if (frame.isIdle ()) {
+            while (running && !wakeFlag)
+               LockSupport.park (this);
+            next = System.nanoTime ();
+            last = next - period;
+         }
+      }
+   }
+
+   public long getFrameCount ()
+   {
+      return frames;
+   }
+
+   public long getSkippedFrames ()
+   {
+      return skipped;
+   }
+
+   public long getMaxFrameTime ()
+   {
+      return maxFrameTime;
+   }
+
+   public long getAverageFrameTime ()
+   {
+      long count = frames;
+      return (count == 0) ? 0 : totalFrameTime / count;
+   }
+}
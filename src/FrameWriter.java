@@ -0,0 +1,51 @@
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.*;
+
+// Writes frames either as numbered PNGs in a directory, or, if the path
+// ends in ".raw", as one stream of raw 24-bit RGB frames.
+class FrameWriter
+{
+   private File          path;
+   private BufferedImage image;
+   private OutputStream  raw = null;
+   private byte[]        rgb;
+
+   public FrameWriter (File path, BufferedImage image) throws IOException
+   {
+      this.path  = path;
+      this.image = image;
+      if (path.getName().endsWith (".raw")) {
+         raw = new BufferedOutputStream (new FileOutputStream (path));
+         rgb = new byte[image.getWidth() * image.getHeight() * 3];
+      }
+      else if (!path.isDirectory () && !path.mkdirs ())
+         throw new IOException ("Can't create " + path);
+   }
+
+   public void write (long frame) throws IOException
+   {
+      if (raw == null) {
+         ImageIO.write (image, "png", new File (path,
+            String.format ("frame%06d.png", frame)));
+         return;
+      }
+
+      // Unpack our pixels into bytes.
+      int[] pixels = ((DataBufferInt) image.getRaster ()
+                      .getDataBuffer ()).getData ();
+      for (int i = 0, j = 0; i < pixels.length; i++) {
+         rgb[j++] = (byte) (pixels[i] >> 16);
+         rgb[j++] = (byte) (pixels[i] >> 8);
+         rgb[j++] = (byte) pixels[i];
+      }
+      raw.write (rgb);
+   }
+
+   public void close () throws IOException
+   {
+      if (raw != null)
+         raw.close ();
+   }
+}
@@ -42,6 +42,31 @@ public class Key
       keyOn = pressed;
    }
 
+   public int getLeft ()
+   {
+      // Keys without a lower section start wherever their higher one does.
+      if (lowHeight == 0)
+         return x + highOffset;
+      return Math.min (x, x + highOffset);
+   }
+
+   public int getRight ()
+   {
+      if (lowHeight == 0)
+         return x + highOffset + highWidth;
+      return Math.max (x + lowWidth, x + highOffset + highWidth);
+   }
+
+   public int getTop ()
+   {
+      return y;
+   }
+
+   public int getBottom ()
+   {
+      return y + highHeight + lowHeight;
+   }
+
    public boolean mouseInBounds (int mousex, int mousey)
    {
       // Is the mouse over the lower section of the key?
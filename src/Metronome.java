@@ -1,35 +1,68 @@
 import java.util.*;
 import javax.sound.midi.*;
 
+// Clicks along at a steady tempo.  Clicks aren't played as they happen;
+// a timer wakes up every so often and hands the synthesizer every click
+// due in the next little while, stamped with the exact microsecond it
+// should sound.  Each click's time is worked out from its number and the
+// tempo, so rounding never adds up and a late timer never moves a click.
+//
+// A synthesizer without a clock of its own can't be sent clicks ahead of
+// time.  Then the timer wakes up for each click as it falls due instead,
+// so clicks are only as steady as the timer, to a millisecond or so.
 class Metronome
 {
+   // Click velocity.  Beats use the accent pattern, which defaults to
+   // every beat at this; subdivisions in between are quieter.
+   static public final int DEFAULT_VELOCITY = 100;
+
+   // How far ahead clicks are sent, and how often we wake up to send
+   // them, in microseconds and milliseconds.
+   static public final long LOOKAHEAD   = 200000l;
+   static public final long WAKE_PERIOD = 50l;
+
    // Metronome sound specification.
    private int channel;
    private int note;
    private int instrument;
 
    // MIDI information.
-   private Instrument[] instr;
-   private MidiChannel[] mc;
-   private Synthesizer synth;
+   private SynthService        synth = SynthService.getInstance ();
+   private SynthService.Client client;
+   private Receiver            receiver;
 
-   // Keep track of our on/off state.
-   private Timer timer = null;
+   // Rhythm: velocities for each beat of a bar, and clicks per beat.
+   private int[] accents      = { DEFAULT_VELOCITY };
+   private int   subdivisions = 1;
+
+   // Current schedule: click number 'next' sounds at
+   // start + next * period microseconds, and there are 'clicksPerBeat'
+   // clicks to a beat.
+   private Timer  timer = null;
+   private long   start;
+   private double period;
+   private int    clicksPerBeat = 1;
+   private long   next;
 
    class MetronomeTask extends TimerTask
    {
-      boolean noteOn = false;
+      private Timer owner;
+
+      public MetronomeTask (Timer owner)
+      {
+         this.owner = owner;
+      }
+
       public void run ()
       {
-         // Toggle note state.
-         if (noteOn) {
-            mc[channel].noteOff (note);
-            noteOn = false;
-         }
-         else {
-            mc[channel].noteOn (note, 600);
-            noteOn = true;
-         }
+         // Send everything due before we wake up again, and then some.
+         if (receiver == null)
+            return;
+         if (synth.hasClock ())
+            sendClicks (receiver, synth.getMicrosecondPosition () +
+                        LOOKAHEAD, true);
+         else
+            sendDueClicks (owner);
       }
    }
 
@@ -52,13 +85,12 @@ class Metronome
       this.note = note;
       this.channel = channel;
 
-      // Initialize a MIDI synthesizer that belongs to our metronome.
+      // Share the process's synthesizer, on a channel of our own.
       try {
-         synth = MidiSystem.getSynthesizer ();
-         synth.open ();
-         mc = synth.getChannels ();
-         instr = synth.getDefaultSoundbank().getInstruments();
-         synth.loadInstrument(instr[this.instrument]);
+         client = synth.open ("Metronome", channel);
+         this.channel = client.getChannel ();
+         receiver = synth.getReceiver ();
+         synth.loadInstrument (this.instrument);
       }
       catch (Exception e) {
          System.out.println ("Metronome(): " + e);
@@ -69,7 +101,54 @@ class Metronome
          enable (bpm);
    }
 
+   Metronome (int channel, int note)
+   {
+      // Clicks for a synthesizer of the caller's own, such as one rendering
+      // offline.  Nothing is opened, and clicks are only sent by
+      // sendClicks(), after schedule().
+      this.channel = channel;
+      this.note    = note;
+   }
+
+   public synchronized void setAccents (int[] accents)
+   {
+      // One velocity per beat of the bar, repeating.  Zero is a rest.
+      if (accents == null || accents.length == 0)
+         accents = new int[] { DEFAULT_VELOCITY };
+      this.accents = new int[accents.length];
+      for (int i = 0; i < accents.length; i++)
+         this.accents[i] = Math.max (0, Math.min (127, accents[i]));
+   }
+
+   public synchronized void setSubdivisions (int subdivisions)
+   {
+      // Takes effect the next time we're enabled.
+      this.subdivisions = Math.max (1, Math.min (16, subdivisions));
+   }
+
    public void enable (int bpm)
+   {
+      // Start clicking from now.
+      enable (bpm, synth.getMicrosecondPosition ());
+   }
+
+   public synchronized void enable (int bpm, long start)
+   {
+      // Turn our timer off.
+      if (isEnabled ())
+         disable ();
+
+      // Start a new schedule, and a timer to send it.
+      schedule (bpm, start);
+      timer = new Timer ("Metronome", true);
+      if (synth.hasClock ())
+         timer.scheduleAtFixedRate (new MetronomeTask (timer), 0,
+                                    WAKE_PERIOD);
+      else
+         timer.schedule (new MetronomeTask (timer), 0);
+   }
+
+   synchronized void schedule (int bpm, long start)
    {
       // Cap our metronome to reasonable values.
       if (bpm < 1)
@@ -77,31 +156,95 @@ class Metronome
       else if (bpm > 600)
          bpm = 600;
 
-      // Turn our timer off.
-      if (isEnabled ())
-         disable ();
+      // Start a new schedule, with the first click at 'start' (in the
+      // synthesizer's microseconds).
+      this.start         = start;
+      this.period        = 60000000.0 / bpm / subdivisions;
+      this.clicksPerBeat = subdivisions;
+      this.next          = 0;
+   }
 
-      // Start a new timer.  Tick twice for every metronome click -
-      // one to turn the note on, another to turn the note off.
-      timer = new Timer();
-      timer.scheduleAtFixedRate (new MetronomeTask (), 0, 30000l / (long) bpm);
+   private synchronized void sendDueClicks (Timer owner)
+   {
+      // Without a clock, send the clicks that are due, then sleep until
+      // the next one.  If we've been disabled, or enabled again with a
+      // new timer, this one's finished.
+      if (timer != owner)
+         return;
+      long now = synth.getMicrosecondPosition ();
+      sendClicks (receiver, now + 1, false);
+      long wait = (getClickTime (next) - now + 999) / 1000;
+      timer.schedule (new MetronomeTask (owner), Math.max (0, wait));
    }
 
-   public void disable ()
+   public synchronized void disable ()
    {
-      // If there's a timer, get rid of it.
+      // If there's a timer, get rid of it.  Clicks already sent will
+      // still play, but that's at most LOOKAHEAD's worth.
       if (timer != null) {
-         timer.purge ();
+         timer.cancel ();
          timer = null;
       }
    }
 
-   public boolean isEnabled ()
+   public synchronized boolean isEnabled ()
    {
       // Return 'true' if there's a timer.
-      if (timer != null)
-         return true;
-      else
-         return false;
+      return (timer != null);
+   }
+
+   public synchronized long getClickTime (long click)
+   {
+      // Always from the click number, never by adding up periods.
+      return start + Math.round (click * period);
+   }
+
+   synchronized void sendClicks (Receiver receiver, long until,
+                                 boolean timestamps)
+   {
+      // Send every click starting before 'until'.  If 'timestamps' is
+      // set, the receiver is given each one's exact time, and it turns off
+      // again halfway to the next.  Otherwise they play as they arrive,
+      // and each one turns the last off.
+      for (; getClickTime (next) < until; next++) {
+         int velocity = getVelocity (next);
+         if (velocity == 0)
+            continue;
+         if (timestamps) {
+            long off = start + Math.round ((next + 0.5) * period);
+            send (receiver, ShortMessage.NOTE_ON, velocity,
+                  getClickTime (next));
+            send (receiver, ShortMessage.NOTE_OFF, 0, off);
+         }
+         else {
+            send (receiver, ShortMessage.NOTE_OFF, 0, -1);
+            send (receiver, ShortMessage.NOTE_ON, velocity, -1);
+         }
+      }
+   }
+
+   synchronized int getVelocity (long click)
+   {
+      // Beats follow the accent pattern; subdivisions are half as loud.
+      // Clicks are counted in the schedule's subdivisions, which may not
+      // be the ones asked for since.
+      long beat = click / clicksPerBeat;
+      int velocity = accents[(int) (beat % accents.length)];
+      if (click % clicksPerBeat != 0)
+         velocity /= 2;
+      return velocity;
+   }
+
+   private void send (Receiver receiver, int command, int velocity,
+                      long timestamp)
+   {
+      try {
+         ShortMessage sm = new ShortMessage ();
+         sm.setMessage (command, channel, note, velocity);
+         receiver.send (sm, timestamp);
+      }
+      catch (InvalidMidiDataException e) {
+         System.out.println (e);
+      }
    }
 }
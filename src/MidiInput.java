@@ -0,0 +1,160 @@
+import javax.sound.midi.*;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Plays a Piano from a MIDI keyboard, or any other device that sends MIDI.
+// Messages arrive on the device's own thread and are posted straight to
+// the piano's note queue, waking its update loop, so nothing passes
+// through the AWT event queue on the way.  Notes keep their velocity, and
+// the sustain pedal works as it does on the computer keyboard.
+//
+// Anything with a Transmitter can be connected, so a loopback or virtual
+// device stands in for real hardware just as well.  The time from a note
+// arriving to the piano playing it is measured for every note.
+class MidiInput implements Receiver
+{
+   private Piano       piano;
+   private MidiDevice  device      = null;
+   private Transmitter transmitter = null;
+
+   // When each key's last note on arrived (System.nanoTime()).  Written on
+   // the device's thread and read on the piano's, so it's atomic.
+   private AtomicLongArray received = new AtomicLongArray (128);
+
+   // Input-to-note latency statistics, in nanoseconds.
+   private volatile long notes        = 0;
+   private volatile long maxLatency   = 0;
+   private volatile long totalLatency = 0;
+
+   public MidiInput (Piano piano)
+   {
+      this.piano = piano;
+   }
+
+   static public MidiDevice.Info[] getDevices ()
+   {
+      // Every device that can send us MIDI, other than sequencers and
+      // synthesizers, which only echo what they're given.
+      ArrayList<MidiDevice.Info> devices = new ArrayList<MidiDevice.Info> ();
+      MidiDevice.Info[] infos = MidiSystem.getMidiDeviceInfo ();
+      for (int i = 0; i < infos.length; i++) {
+         try {
+            MidiDevice device = MidiSystem.getMidiDevice (infos[i]);
+            if (!(device instanceof Sequencer) &&
+                !(device instanceof Synthesizer) &&
+                device.getMaxTransmitters () != 0)
+               devices.add (infos[i]);
+         }
+         catch (MidiUnavailableException e) {
+            System.out.println (e);
+         }
+      }
+      return devices.toArray (new MidiDevice.Info[devices.size ()]);
+   }
+
+   public synchronized void open (MidiDevice.Info info)
+      throws MidiUnavailableException
+   {
+      // Only one device at a time.
+      close ();
+      MidiDevice newDevice = MidiSystem.getMidiDevice (info);
+      newDevice.open ();
+      try {
+         connect (newDevice.getTransmitter ());
+      }
+      catch (MidiUnavailableException e) {
+         newDevice.close ();
+         throw e;
+      }
+      device = newDevice;
+   }
+
+   public synchronized void connect (Transmitter transmitter)
+   {
+      // Listen to a transmitter directly, such as a loopback device's.
+      if (this.transmitter != null)
+         this.transmitter.close ();
+      this.transmitter = transmitter;
+      transmitter.setReceiver (this);
+   }
+
+   public synchronized void close ()
+   {
+      // Disconnect, and let go of anything still held.
+      if (transmitter != null) {
+         transmitter.close ();
+         transmitter = null;
+         piano.allNotesOff (Piano.MASK_MIDI_IN);
+      }
+      if (device != null) {
+         device.close ();
+         device = null;
+      }
+   }
+
+   public synchronized MidiDevice getDevice ()
+   {
+      return device;
+   }
+
+   public void send (MidiMessage message, long timestamp)
+   {
+      // We only play notes and the pedal.  Every channel counts.
+      if (!(message instanceof ShortMessage))
+         return;
+      ShortMessage sm = (ShortMessage) message;
+      int data1 = sm.getData1 (), data2 = sm.getData2 ();
+      int command = sm.getCommand ();
+
+      // Velocity zero is really a NOTE_OFF.
+      if (command == ShortMessage.NOTE_ON && data2 == 0)
+         command = ShortMessage.NOTE_OFF;
+      switch (command) {
+         case ShortMessage.NOTE_ON:
+            received.set (data1, System.nanoTime ());
+            piano.noteOn (data1, Piano.MASK_MIDI_IN, data2);
+            break;
+         case ShortMessage.NOTE_OFF:
+            piano.noteOff (data1, Piano.MASK_MIDI_IN);
+            break;
+         case ShortMessage.CONTROL_CHANGE:
+            // Sustain pedal, and "all notes off".
+            if (data1 == 0x40) {
+               if (data2 >= 0x40)
+                  piano.pedalOn ();
+               else
+                  piano.pedalOff ();
+            }
+            else if (data1 == 0x7B)
+               piano.allNotesOff (Piano.MASK_MIDI_IN);
+            break;
+      }
+   }
+
+   void noteApplied (int key)
+   {
+      // Called by the piano's update loop as it plays a note we sent.
+      if (key < 0 || key >= received.length ())
+         return;
+      long latency = System.nanoTime () - received.get (key);
+      maxLatency    = Math.max (maxLatency, latency);
+      totalLatency += latency;
+      notes++;
+   }
+
+   public long getNoteCount ()
+   {
+      return notes;
+   }
+
+   public long getMaxLatency ()
+   {
+      return maxLatency;
+   }
+
+   public long getAverageLatency ()
+   {
+      long count = notes;
+      return (count == 0) ? 0 : totalLatency / count;
+   }
+}
@@ -0,0 +1,283 @@
+import javax.sound.midi.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Reads Standard MIDI Files through a FileChannel.  The chunks are indexed
+// first, then each track is read into a single reused buffer and decoded
+// straight into the sequence, so memory goes to the decoded events plus
+// the largest track, whatever the size of the file.
+//
+// A file that was cut short loses only what's missing: the last chunk is
+// clamped to the end of the file, and an event cut off partway through is
+// dropped.
+class MidiLoader
+{
+   // Chunk identifiers.
+   static private final int CHUNK_MTHD = 0x4D546864;
+   static private final int CHUNK_MTRK = 0x4D54726B;
+
+   // The file, and the chunk being decoded.
+   private FileChannel channel;
+   private ByteBuffer  buffer = ByteBuffer.allocate (256);
+
+   // Chunk index of every 'MTrk' chunk, built before any track is decoded.
+   // Only the last one can have been clamped.
+   private long[]  trackOffset;
+   private int[]   trackLength;
+   private int     trackCount;
+   private boolean clamped;
+
+   // Header information.
+   private float divisionType;
+   private int   resolution;
+
+   static public Sequence load (String file)
+      throws IOException, InvalidMidiDataException
+   {
+      // Open the file, then decode it.
+      FileInputStream stream = new FileInputStream (file);
+      try {
+         return new MidiLoader (stream.getChannel ()).getSequence ();
+      }
+      finally {
+         stream.close ();
+      }
+   }
+
+   public MidiLoader (FileChannel channel)
+      throws IOException, InvalidMidiDataException
+   {
+      this.channel = channel;
+      readHeader ();
+   }
+
+   public Sequence getSequence ()
+      throws IOException, InvalidMidiDataException
+   {
+      // Decode tracks one at a time.  Running out of a clamped track just
+      // means the rest of it is missing.
+      Sequence sequence = new Sequence (divisionType, resolution);
+      for (int i = 0; i < trackCount; i++) {
+         read (trackOffset[i], trackLength[i]);
+         try {
+            readTrack (sequence.createTrack ());
+         }
+         catch (TruncatedException e) {
+            if (!clamped || i != trackCount - 1)
+               throw e;
+         }
+      }
+      return sequence;
+   }
+
+   private int read (long offset, int length) throws IOException
+   {
+      // Read up to 'length' bytes at 'offset' into our buffer, growing it
+      // if need be, and return how many there were.
+      if (buffer.capacity () < length)
+         buffer = ByteBuffer.allocate (Math.max (length,
+                                                 buffer.capacity () * 2));
+      buffer.clear ();
+      buffer.limit (length);
+      while (buffer.hasRemaining ())
+         if (channel.read (buffer, offset + buffer.position ()) < 0)
+            break;
+      buffer.flip ();
+      return buffer.limit ();
+   }
+
+   private void readHeader () throws IOException, InvalidMidiDataException
+   {
+      // Every file starts with a 'MThd' chunk.
+      if (read (0, 14) < 14 || buffer.getInt (0) != CHUNK_MTHD)
+         throw new InvalidMidiDataException ("Not a Standard MIDI File");
+      int length = buffer.getInt (4);
+      if (length < 6)
+         throw new InvalidMidiDataException ("Invalid MIDI header");
+
+      // Determine timing.  A negative high byte means SMPTE timing.
+      int division = buffer.getShort (12) & 0xFFFF;
+      if ((division & 0x8000) == 0) {
+         divisionType = Sequence.PPQ;
+         resolution   = division;
+      }
+      else {
+         switch (-((byte) (division >> 8))) {
+            case 24: divisionType = Sequence.SMPTE_24;     break;
+            case 25: divisionType = Sequence.SMPTE_25;     break;
+            case 29: divisionType = Sequence.SMPTE_30DROP; break;
+            case 30: divisionType = Sequence.SMPTE_30;     break;
+            default:
+               throw new InvalidMidiDataException ("Invalid SMPTE format");
+         }
+         resolution = division & 0xFF;
+      }
+
+      // The rest of the file is chunks.
+      indexTracks (8 + length);
+   }
+
+   private void indexTracks (long position)
+      throws IOException, InvalidMidiDataException
+   {
+      trackOffset = new long[16];
+      trackLength = new int[16];
+      trackCount  = 0;
+      clamped     = false;
+
+      // Walk every chunk, remembering where tracks are.  Unknown chunks
+      // are skipped, as the specification requires.  A chunk that runs
+      // past the end of the file can only be the last one, and gets
+      // whatever's there.  (So do a few stray bytes after the last chunk:
+      // they're ignored.)
+      long size = channel.size ();
+      while (size - position >= 8) {
+         read (position, 8);
+         int  type   = buffer.getInt ();
+         long length = buffer.getInt () & 0xFFFFFFFFl;
+         position += 8;
+         if (length > size - position) {
+            length  = size - position;
+            clamped = (type == CHUNK_MTRK);
+         }
+         if (length > Integer.MAX_VALUE)
+            throw new InvalidMidiDataException ("MIDI chunk too large");
+
+         if (type == CHUNK_MTRK) {
+            if (trackCount == trackOffset.length) {
+               long[] offset = new long[trackCount * 2];
+               int[]  len    = new int[trackCount * 2];
+               System.arraycopy (trackOffset, 0, offset, 0, trackCount);
+               System.arraycopy (trackLength, 0, len,    0, trackCount);
+               trackOffset = offset;
+               trackLength = len;
+            }
+            trackOffset[trackCount] = position;
+            trackLength[trackCount] = (int) length;
+            trackCount++;
+         }
+         position += length;
+      }
+   }
+
+   private void readTrack (Track track) throws InvalidMidiDataException
+   {
+      // The track is all of our buffer.
+      int  running = 0;
+      long tick    = 0;
+      while (buffer.hasRemaining ()) {
+         // Every event starts with a delta time.
+         tick += readVarInt ();
+
+         // Read the status byte.  If it's actually a data byte, this is
+         // running status; reuse the last channel status.
+         int data1  = -1;
+         int status = readByte ();
+         if (status < 0x80) {
+            if (running == 0)
+               throw new InvalidMidiDataException ("Invalid running status");
+            data1  = status;
+            status = running;
+         }
+         else if (status < 0xF0)
+            running = status;
+
+         MidiMessage message;
+         if (status == 0xFF) {
+            // Meta event.
+            int type = readByte ();
+            byte[] data = readData ((int) readVarInt ());
+            MetaMessage meta = new MetaMessage ();
+            meta.setMessage (type, data, data.length);
+            message = meta;
+         }
+         else if (status == 0xF0 || status == 0xF7) {
+            // System exclusive.
+            byte[] data = readData ((int) readVarInt ());
+            SysexMessage sysex = new SysexMessage ();
+            if (status == 0xF0) {
+               byte[] full = new byte[data.length + 1];
+               full[0] = (byte) 0xF0;
+               System.arraycopy (data, 0, full, 1, data.length);
+               data = full;
+            }
+            sysex.setMessage (data, data.length);
+            message = sysex;
+         }
+         else if (status > 0xF0) {
+            // Other system messages, which have no channel.  System common
+            // messages cancel running status; real-time ones don't.  The
+            // two undefined ones (0xF4 and 0xF5) can't be represented, so
+            // they're dropped.
+            if (status < 0xF8)
+               running = 0;
+            int data2 = 0;
+            data1 = 0;
+            if (status == 0xF1 || status == 0xF2 || status == 0xF3)
+               data1 = readByte ();
+            if (status == 0xF2)
+               data2 = readByte ();
+            if (status == 0xF4 || status == 0xF5)
+               continue;
+            ShortMessage sm = new ShortMessage ();
+            sm.setMessage (status, data1 & 0x7F, data2 & 0x7F);
+            message = sm;
+         }
+         else {
+            // Channel messages.  Program change and channel pressure only
+            // have one data byte.
+            if (data1 < 0)
+               data1 = readByte ();
+            int data2 = 0;
+            int command = status & 0xF0;
+            if (command != ShortMessage.PROGRAM_CHANGE &&
+                command != ShortMessage.CHANNEL_PRESSURE)
+               data2 = readByte ();
+            ShortMessage sm = new ShortMessage ();
+            sm.setMessage (status, data1 & 0x7F, data2 & 0x7F);
+            message = sm;
+         }
+         track.add (new MidiEvent (message, tick));
+      }
+   }
+
+   private int readByte () throws InvalidMidiDataException
+   {
+      if (!buffer.hasRemaining ())
+         throw new TruncatedException ();
+      return buffer.get () & 0xFF;
+   }
+
+   private long readVarInt () throws InvalidMidiDataException
+   {
+      // Variable-length quantities use 7 bits per byte, high bit set on
+      // every byte but the last.  They're never longer than four bytes.
+      long value = 0;
+      for (int i = 0; i < 4; i++) {
+         int b = readByte ();
+         value = (value << 7) | (b & 0x7F);
+         if ((b & 0x80) == 0)
+            return value;
+      }
+      throw new InvalidMidiDataException ("Invalid variable-length value");
+   }
+
+   private byte[] readData (int length) throws InvalidMidiDataException
+   {
+      if (length > buffer.remaining ())
+         throw new TruncatedException ();
+      byte[] data = new byte[length];
+      buffer.get (data);
+      return data;
+   }
+
+   // An event ran past the end of its track.
+   static private class TruncatedException extends InvalidMidiDataException
+   {
+      public TruncatedException ()
+      {
+         super ("Truncated MIDI event");
+      }
+   }
+}
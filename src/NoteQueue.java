@@ -0,0 +1,136 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Bounded, lock-free queue of note events.  Any number of threads (the AWT
+// event thread, MIDI loaders, etc.) may post events, but only one thread -
+// Piano's update loop - may take them.  Events are packed into ints so
+// posting and draining never allocate.
+class NoteQueue
+{
+   // Event types.
+   static public final int NOTE_ON      = 1;
+   static public final int NOTE_OFF     = 2;
+   static public final int PEDAL_ON     = 3;
+   static public final int PEDAL_OFF    = 4;
+   static public final int PEDAL_TOGGLE = 5;
+   static public final int ALL_OFF      = 6;
+   static public final int CHANNEL      = 7;
+
+   // Value returned by poll() when the queue is empty.
+   static public final int EMPTY = -1;
+
+   // Default number of slots.  Must be a power of two.
+   static public final int DEFAULT_CAPACITY = 4096;
+
+   // Ring buffer.  Each slot has a sequence number that says whether it's
+   // ready to be written (sequence == position) or read
+   // (sequence == position + 1).
+   private int[]           slots;
+   private AtomicLongArray sequences;
+   private int             mask;
+
+   // Positions of the next write (shared) and read (consumer only).
+   private AtomicLong tail = new AtomicLong (0);
+   private long       head = 0;
+
+   public NoteQueue ()
+   {
+      this (DEFAULT_CAPACITY);
+   }
+
+   public NoteQueue (int capacity)
+   {
+      // Round up to a power of two so we can mask instead of divide.
+      int size = Integer.highestOneBit (Math.max (2, capacity));
+      if (size < capacity)
+         size <<= 1;
+      slots     = new int[size];
+      sequences = new AtomicLongArray (size);
+      mask      = size - 1;
+      for (int i = 0; i < size; i++)
+         sequences.set (i, i);
+   }
+
+   static public int encode (int type, int key, int mask)
+   {
+      return encode (type, key, mask, 0);
+   }
+
+   static public int encode (int type, int key, int mask, int velocity)
+   {
+      // Pack as (key | velocity << 8 | mask << 16 | type << 24).  A
+      // velocity of zero means "the default".
+      return (key & 0xFF) | ((velocity & 0xFF) << 8) | ((mask & 0xFF) << 16) |
+             (type << 24);
+   }
+
+   static public int getType (int event)
+   {
+      return event >>> 24;
+   }
+
+   static public int getKey (int event)
+   {
+      return event & 0xFF;
+   }
+
+   static public int getVelocity (int event)
+   {
+      return (event >> 8) & 0xFF;
+   }
+
+   static public int getMask (int event)
+   {
+      return (event >> 16) & 0xFF;
+   }
+
+   public boolean offer (int event)
+   {
+      while (true) {
+         // Is the slot at the end of the queue free?
+         long pos = tail.get ();
+         int  i   = (int) pos & mask;
+         long seq = sequences.get (i);
+
+         // It's free - claim it, fill it in, then publish it.
+         if (seq == pos) {
+            if (tail.compareAndSet (pos, pos + 1)) {
+               slots[i] = event;
+               sequences.lazySet (i, pos + 1);
+               return true;
+            }
+         }
+         // The consumer hasn't taken this slot yet; we're full.
+         else if (seq < pos)
+            return false;
+         // Otherwise another producer beat us to it.  Try again.
+      }
+   }
+
+   public void post (int event)
+   {
+      // Never drop events.  If we're full, wait for the consumer.
+      while (!offer (event))
+         Thread.yield ();
+   }
+
+   public boolean isEmpty ()
+   {
+      // Only meaningful to the consumer.
+      return sequences.get ((int) head & mask) != head + 1;
+   }
+
+   public int poll ()
+   {
+      // Is the slot at the front of the queue published yet?
+      int i = (int) head & mask;
+      if (sequences.get (i) != head + 1)
+         return EMPTY;
+
+      // Take its event and hand the slot back to producers.
+      int event = slots[i];
+      sequences.lazySet (i, head + slots.length);
+      head++;
+      return event;
+   }
+}
@@ -0,0 +1,71 @@
+import javax.sound.midi.ShortMessage;
+
+// Turns played MIDI events into visualizer notes, keeping track of held
+// notes and the sustain pedal the same way Piano.UpdateTask does: notes
+// held by the pedal keep showing until it's released, notes are tracked
+// per channel, and channels muted by a ChannelFilter are ignored.
+class NoteTracker implements PlaybackEngine.Listener
+{
+   private Visualizer visualizer;
+   private int        channelMask;
+   private int[]      held      = new int[Piano.TONE_RANGE];
+   private boolean[]  sustained = new boolean[Piano.TONE_RANGE];
+   private boolean    pedal     = false;
+
+   public NoteTracker (Visualizer visualizer)
+   {
+      this (visualizer, new ChannelFilter ());
+   }
+
+   public NoteTracker (Visualizer visualizer, ChannelFilter filter)
+   {
+      // The filter is taken as it is now; later changes aren't seen.
+      this.visualizer  = visualizer;
+      this.channelMask = filter.getChannelMask ();
+   }
+
+   public void playbackEvent (int message)
+   {
+      // Drop events from muted channels before anything else.
+      int channel = PlaybackEvents.getChannel (message);
+      if ((channelMask & (1 << channel)) == 0)
+         return;
+
+      // Velocity zero is really a NOTE_OFF.
+      int command = PlaybackEvents.getCommand (message);
+      if (command == ShortMessage.NOTE_ON &&
+          PlaybackEvents.getData2 (message) == 0)
+         command = ShortMessage.NOTE_OFF;
+
+      // 'held' has a bit for each channel holding a note.
+      int note = PlaybackEvents.getData1 (message);
+      switch (command) {
+         case ShortMessage.NOTE_ON:
+            if (held[note] == 0)
+               visualizer.noteOn (note);
+            held[note] |= 1 << channel;
+            if (pedal)
+               sustained[note] = true;
+            break;
+         case ShortMessage.NOTE_OFF:
+            held[note] &= ~(1 << channel);
+            if (held[note] == 0 && !pedal)
+               visualizer.noteOff (note);
+            break;
+         case ShortMessage.CONTROL_CHANGE:
+            if (note != 0x40)
+               break;
+            pedal = PlaybackEvents.isPedalOn (message);
+            for (int key = 0; key < Piano.TONE_RANGE; key++) {
+               if (pedal)
+                  sustained[key] = (held[key] != 0);
+               else if (sustained[key]) {
+                  if (held[key] == 0)
+                     visualizer.noteOff (key);
+                  sustained[key] = false;
+               }
+            }
+            break;
+      }
+   }
+}
@@ -0,0 +1,208 @@
+import javax.sound.midi.*;
+import javax.sound.sampled.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.*;
+import java.lang.reflect.Method;
+import java.util.Map;
+
+// Renders a MIDI file to a WAV file and a series of visualizer frames
+// without a display or an audio device.  Everything is driven by a virtual
+// clock that advances one frame at a time, so rendering runs as fast as the
+// CPU allows.
+class OfflineRenderer
+{
+   // Defaults.
+   static public final int  DEFAULT_FPS    = 30;
+   static public final int  DEFAULT_WIDTH  = 500;
+   static public final int  DEFAULT_HEIGHT = 200;
+   static public final long TAIL_MICROS    = 2000000l;
+   static public final long DEFAULT_SEED   = 0;
+
+   // Audio format for rendered sound.
+   static public final AudioFormat AUDIO_FORMAT =
+      new AudioFormat (44100f, 16, 2, true, false);
+
+   // Render settings.
+   private int fps    = DEFAULT_FPS;
+   private int width  = DEFAULT_WIDTH;
+   private int height = DEFAULT_HEIGHT;
+   private long seed  = DEFAULT_SEED;
+   private boolean softwareRendering = false;
+
+   public void setFrameRate (int fps)
+   {
+      this.fps = Math.max (1, fps);
+   }
+
+   public void setSize (int width, int height)
+   {
+      this.width  = Math.max (1, width);
+      this.height = Math.max (1, height);
+   }
+
+   public void setSeed (long seed)
+   {
+      // The visualizer's shapes come from this, so rendering the same file
+      // with the same seed gives the same frames.
+      this.seed = seed;
+   }
+
+   public void setSoftwareRendering (boolean softwareRendering)
+   {
+      // Draw frames with Rasterizer instead of Java2D.
+      this.softwareRendering = softwareRendering;
+   }
+
+   public void render (String midiFile, File wavFile, File frameFile)
+      throws IOException, InvalidMidiDataException, MidiUnavailableException
+   {
+      // Load our file.
+      Sequence sequence = MidiLoader.load (midiFile);
+      PlaybackEvents events = new PlaybackEvents (sequence);
+
+      // Render sound through the software synthesizer's streaming mode.
+      Synthesizer synth = null;
+      AudioInputStream audio = null;
+      Receiver receiver = null;
+      WavWriter wav = null;
+      if (wavFile != null) {
+         synth = MidiSystem.getSynthesizer ();
+         audio = openStream (synth);
+         if (audio != null) {
+            receiver = synth.getReceiver ();
+            wav = new WavWriter (wavFile, AUDIO_FORMAT);
+         }
+      }
+
+      // Render pictures through a visualizer engine of our own, straight
+      // into our frame's pixels.
+      PolygonVisualizer visualizer = new PolygonVisualizer (seed);
+      visualizer.setSoftwareRendering (softwareRendering);
+      BufferedImage image = new BufferedImage (width, height,
+                                               BufferedImage.TYPE_INT_RGB);
+      int[] pixels = ((DataBufferInt) image.getRaster ()
+                      .getDataBuffer ()).getData ();
+      FrameWriter frames = new FrameWriter (frameFile, image);
+
+      // Play the file on a virtual clock that starts at zero.  The engine
+      // gives the synthesizer exact timestamps so each event lands on the
+      // right sample.
+      PlaybackEngine engine = new PlaybackEngine (receiver,
+         new NoteTracker (visualizer), true);
+      engine.load (events);
+      engine.start (0);
+
+      // Step through the file one frame at a time.
+      long end  = events.getLengthMicros () + TAIL_MICROS;
+      long last = (end * fps + 999999) / 1000000;
+      long samples = 0;
+      byte[] buffer = new byte[AUDIO_FORMAT.getFrameSize() *
+                               ((int) AUDIO_FORMAT.getSampleRate() / fps + 1)];
+      for (long frame = 0; frame < last; frame++) {
+         // Dispatch every event before the end of this frame.
+         engine.advance ((frame + 1) * 1000000l / fps - 1);
+
+         // Render sound up to the end of this frame.
+         if (audio != null) {
+            long sampleEnd = (long) ((frame + 1) *
+               (double) AUDIO_FORMAT.getSampleRate() / fps);
+            int bytes = (int) (sampleEnd - samples) *
+                        AUDIO_FORMAT.getFrameSize ();
+            readFully (audio, buffer, bytes);
+            wav.write (buffer, bytes);
+            samples = sampleEnd;
+         }
+
+         // Move the visualizer forward and draw it.
+         visualizer.step (1f / fps);
+         visualizer.render (pixels, width, height);
+         frames.write (frame);
+      }
+
+      // Clean up.
+      frames.close ();
+      if (wav != null)
+         wav.close ();
+      if (synth != null)
+         synth.close ();
+   }
+
+   static public AudioInputStream openStream (Synthesizer synth)
+   {
+      // Gervill (the JDK's software synthesizer) can render straight into
+      // an AudioInputStream instead of a sound card.  It isn't public API,
+      // so look for it by name.  On Java 9 and later its package must be
+      // exported to us (see Manifest.txt).
+      try {
+         Class<?> type = Class.forName (
+            "com.sun.media.sound.AudioSynthesizer");
+         if (!type.isInstance (synth))
+            throw new UnsupportedOperationException (
+               synth.getClass().getName());
+         Method open = type.getMethod ("openStream", AudioFormat.class,
+                                       Map.class);
+         return (AudioInputStream) open.invoke (synth, AUDIO_FORMAT, null);
+      }
+      catch (Exception e) {
+         System.out.println ("Offline audio is unavailable: " + e);
+         return null;
+      }
+   }
+
+   static public void readFully (AudioInputStream in, byte[] buffer, int len)
+      throws IOException
+   {
+      for (int pos = 0; pos < len; ) {
+         int read = in.read (buffer, pos, len - pos);
+         if (read < 0)
+            throw new EOFException ();
+         pos += read;
+      }
+   }
+
+   // Writes PCM audio to a WAV file, filling in its sizes when closed.
+   static private class WavWriter
+   {
+      private RandomAccessFile file;
+      private long dataBytes = 0;
+
+      public WavWriter (File path, AudioFormat format) throws IOException
+      {
+         file = new RandomAccessFile (path, "rw");
+         file.setLength (0);
+
+         // RIFF header and 'fmt ' chunk.  Sizes are patched in close().
+         int channels = format.getChannels ();
+         int bits     = format.getSampleSizeInBits ();
+         int rate     = (int) format.getSampleRate ();
+         file.writeBytes ("RIFF");
+         file.writeInt (0);
+         file.writeBytes ("WAVEfmt ");
+         file.writeInt (Integer.reverseBytes (16));
+         file.writeShort (Short.reverseBytes ((short) 1));
+         file.writeShort (Short.reverseBytes ((short) channels));
+         file.writeInt (Integer.reverseBytes (rate));
+         file.writeInt (Integer.reverseBytes (rate * channels * bits / 8));
+         file.writeShort (Short.reverseBytes ((short) (channels * bits / 8)));
+         file.writeShort (Short.reverseBytes ((short) bits));
+         file.writeBytes ("data");
+         file.writeInt (0);
+      }
+
+      public void write (byte[] data, int len) throws IOException
+      {
+         file.write (data, 0, len);
+         dataBytes += len;
+      }
+
+      public void close () throws IOException
+      {
+         file.seek (4);
+         file.writeInt (Integer.reverseBytes ((int) (36 + dataBytes)));
+         file.seek (40);
+         file.writeInt (Integer.reverseBytes ((int) dataBytes));
+         file.close ();
+      }
+   }
+}
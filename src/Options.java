@@ -0,0 +1,61 @@
+import java.util.HashMap;
+import java.util.Iterator;
+
+// Command-line options: "-name value" pairs following a mode's fixed
+// arguments.  Each mode reads the options it knows with a default for
+// anything left out, then calls finish(), which complains about anything
+// it didn't read.
+class Options
+{
+   private HashMap<String, String> values = new HashMap<String, String> ();
+
+   public Options (String[] args, int first)
+   {
+      // Every option takes a value.
+      for (int i = first; i < args.length; i += 2) {
+         if (!args[i].startsWith ("-") || i + 1 >= args.length)
+            throw new IllegalArgumentException (args[i]);
+         values.put (args[i].substring (1), args[i + 1]);
+      }
+   }
+
+   public String getString (String name, String otherwise)
+   {
+      // Options are forgotten as they're read, so finish() can tell which
+      // ones nobody wanted.
+      String value = values.remove (name);
+      return (value == null) ? otherwise : value;
+   }
+
+   public int getInt (String name, int otherwise)
+   {
+      String value = getString (name, null);
+      return (value == null) ? otherwise : Integer.parseInt (value);
+   }
+
+   public long getLong (String name, long otherwise)
+   {
+      String value = getString (name, null);
+      return (value == null) ? otherwise : Long.parseLong (value);
+   }
+
+   public int[] getSize (String name, int width, int height)
+   {
+      // A size, written as <width>x<height>.
+      String value = getString (name, null);
+      if (value == null)
+         return new int[] { width, height };
+      String[] size = value.split ("x");
+      if (size.length != 2)
+         throw new IllegalArgumentException (value);
+      return new int[] { Integer.parseInt (size[0]),
+                         Integer.parseInt (size[1]) };
+   }
+
+   public void finish ()
+   {
+      Iterator<String> names = values.keySet().iterator ();
+      if (names.hasNext ())
+         throw new IllegalArgumentException ("-" + names.next ());
+   }
+}
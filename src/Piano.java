@@ -28,14 +28,17 @@ public class Piano extends JComponent
    static public final int MASK_MOUSE     = 1 << 0;
    static public final int MASK_KEYBOARD  = 1 << 1;
    static public final int MASK_PLAYBACK  = 1 << 2;
+   static public final int MASK_MIDI_IN   = 1 << 3;
    static public final int TONE_RANGE     = 256;
 
    // MIDI information.
    private int channel;
    private int instrument;
    private MidiChannel[] mc;
-   private Synthesizer synth;
-   private Sequencer sequencer;
+   private SynthService synth = SynthService.getInstance ();
+   private SynthService.Client client;
+   private Receiver receiver;
+   private VoiceManager voices = new VoiceManager (null);
 
    // Performance settings.
    private int transpose = DEFAULT_TRANSPOSE;
@@ -47,105 +50,121 @@ public class Piano extends JComponent
    private int lowestNote;
    private Key[] keyTable;
 
+   // Mouse hit-testing tables, indexed by pixel column.  Each holds the
+   // index of the upper- or lower-tier key covering that column, or -1.
+   private int[] hitUpper = new int[0];
+   private int[] hitLower = new int[0];
+
    // Computer keyboard mappings.
    private Keymap keymap = null;
 
+   // Hardware or virtual MIDI keyboard, if one's open.
+   private MidiInput midiInput = new MidiInput (this);
+
    // Visualization data.
-   private Visual visual = null;
+   private Visualizer visual = null;
 
-   // Keypress data.
+   // Keypress data.  Everything but 'mouseDown' belongs to UpdateTask;
+   // other threads change it by posting to 'noteQueue'.
    private int mouseDown = MOUSE_RELEASED;
-   private int[] keyMask;
+   private int[] keyMask = new int[TONE_RANGE];
+   private long[] dirtyKeys = new long[TONE_RANGE / 64];
+   private NoteQueue noteQueue = new NoteQueue ();
 
    // Key draw information.
    private int highWidth, highHeight, highOffset;
    private int lowWidth,  lowHeight;
 
    // MIDI playback data.
-   private Sequence sequence;
-   private Track[] tracks;
-   private int[] trackEvent;
+   private volatile Sequence sequence;
+   private volatile PlaybackEvents events;
+
+   // Playback engine, owned by UpdateTask.  'playId' changes every time a
+   // file starts or stops so UpdateTask knows to load it.
+   private PlaybackEngine engine;
+   private volatile int playId = 0;
+   private int cursorId = 0;
+
+   // Pending seek position, in ticks, or -1 if there's nothing to do.
+   // Seeks are applied by UpdateTask, so scrubbing several times within a
+   // frame only costs a single seek.
+   private volatile long seekTick = -1;
+   private long[] seekNotes = new long[PlaybackEvents.STATE_WORDS];
+
+   // Which channels' playback is shown.  UpdateTask tests events against
+   // 'heard', its copy of the filter's channel mask, and tracks the
+   // channels holding each key in 'keyChannels'.
+   private ChannelFilter filter = new ChannelFilter ();
+   private int   heard = filter.getChannelMask ();
+   private int[] keyChannels = new int[TONE_RANGE];
+
+   // MIDI file loading, which happens in the background.
+   private final Object playLock = new Object ();
+   private int loadCount = 0;
+   private SequenceCache cache = new SequenceCache ();
 
    // MIDI pedal information (per tone).
    private boolean[] pedalList = new boolean[TONE_RANGE];
    private int[]     keyOff    = new int[TONE_RANGE];
 
-   // Update timer.
-   private java.util.Timer timer;
+   // Update frame rate, in nanoseconds.
+   static public final long FRAME_PERIOD = 16000000l;
 
-   // Task run on every Update tick;
-   private class UpdateTask extends TimerTask
-   {
-      private java.util.Timer timer;
-      private float interval;
+   // How far ahead of the synthesizer's clock files are played, in
+   // microseconds.  A few frames, so a late frame never makes a late note.
+   static public final long PLAYBACK_LOOKAHEAD = 50000l;
 
-      // Basic initializer that takes information passed to
-      //    Timer.scheduleAtFixedRate().
-      public UpdateTask (java.util.Timer timer, float interval)
-      {
-         this.timer    = timer;
-         this.interval = interval;
-      }
+   // Update scheduler.
+   private FrameScheduler scheduler;
 
-      public void run ()
+   // Task run on every Update tick;
+   private class UpdateTask implements FrameScheduler.Frame,
+                                       PlaybackEngine.Listener
+   {
+      public void frame (float interval)
       {
-         // Is MIDI playback active?
-         long curPos = sequencer.getTickPosition();
-         if (sequencer.isRunning() && sequence != null && tracks != null) {
-            // Check every track for events.
-            for (int i = 0; i < tracks.length; i++) {
-               // Look at active event, starting at where we left off the
-               // last time this loop was executed.
-               int j;
-               for (j = trackEvent[i]; j < tracks[i].size(); j++) {
-                  // If the event isn't happening yet, break.
-                  MidiEvent event = tracks[i].get(j);
-                  if (event.getTick() > curPos)
-                     break;
+         // Apply everything posted by input threads since the last tick.
+         poll ();
+
+         // Has a file been loaded or stopped?  Let go of everything the
+         // last one held, then start the new one from the top.
+         PlaybackEvents playing = events;
+         long clock = clock ();
+         if (playId != cursorId) {
+            cursorId = playId;
+            applyAllNotesOff (MASK_PLAYBACK);
+            if (playing == null)
+               engine.load (null);
+            else {
+               // Keep the file off the channels of the keyboard and
+               // everyone else sharing our synthesizer.
+               engine.load (playing,
+                            synth.mapChannels (playing.getChannelMask ()));
+               engine.start (clock);
+            }
+         }
 
-                  // Is this an event we can use?
-                  MidiMessage message = event.getMessage();
-                  if (!(message instanceof ShortMessage))
-                     continue;
-                  ShortMessage sm = (ShortMessage) message;
-
-                  // It is - what kind of event is it?
-                  switch (sm.getCommand()) {
-                     // Turn notes on.
-                     case ShortMessage.NOTE_ON:
-                        if (sm.getData2() == 0)
-                           noteOff (sm.getData1(), MASK_PLAYBACK, false);
-                        else
-                           noteOn (sm.getData1(), MASK_PLAYBACK, false);
-                        break;
-
-                     // Turn notes off.
-                     case ShortMessage.NOTE_OFF:
-                        noteOff (sm.getData1(), MASK_PLAYBACK, false);
-                        break;
-
-                     // Toggle controller changes.
-                     case ShortMessage.CONTROL_CHANGE:
-                        switch (sm.getData1 ()) {
-                           // Pedal on/off.
-                           case 0x40:
-                              if (sm.getData2() >= 0x80)
-                                 pedalOn ();
-                              else
-                                 pedalOff ();
-                              break;
-                           // TODO: more controllers.
-                        }
-                        break;
-                  }
-               }
+         // Jump to a new position if we've been asked to seek.
+         long seekTo = seekTick;
+         if (seekTo >= 0 && playing != null) {
+            seekTick = -1;
+            engine.seek (seekTo, clock);
+            applySeek (playing, seekTo);
+         }
 
-               // Record that we should look at the next event
-               // in this track the next time we run this loop.
-               trackEvent[i] = j;
-            }
+         // If channels have been muted or unmuted, catch our playback keys
+         // up to the new filter as if we'd just seeked here.
+         if (heard != filter.getChannelMask ()) {
+            heard = filter.getChannelMask ();
+            if (playing != null)
+               applySeek (playing, playing.microsToTick (
+                  engine.getPosition (clock)));
          }
 
+         // Play every event that's due.  Each one is sent to the
+         // synthesizer and to playbackEvent() at the same time.
+         engine.advance (clock);
+
          // Turn keys off.
          for (int key = 0; key < TONE_RANGE; key++) {
             if (keyOff[key] == 0)
@@ -156,29 +175,130 @@ public class Piano extends JComponent
             }
 
             // Redraw the key as 'off'.
-            try {
-               keyTable[key - lowestNote].setPressed (false);
-               keyTable[key - lowestNote].paintComponent (getGraphics());
-            } catch (Exception e) {
-               System.out.println (e);
-            }
+            setPressed (key, false);
 
             // If the pedal is off, turn off the note.
             if (!pedal) {
                if (visual != null)
                   visual.noteOff (key);
                if ((keyOff[key] & KEY_OFF_SOUND) != 0)
-                  mc[channel].noteOff (key, 600);
+                  voices.noteOff (key);
             }
 
             // Remove 'turn key off' flags.
             keyOff[key] = 0;
          }
 
+         // Redraw every key that changed this frame at once.
+         repaintDirtyKeys ();
+
          // Update the visualizer.
-         if (visual != null) {
-            visual.rebuildMainPoly ();
-            visual.run (interval);
+         if (visual != null)
+            visual.step (interval);
+      }
+
+      public void playbackEvent (int message)
+      {
+         // Drop events from muted channels before anything else.
+         int channel = PlaybackEvents.getChannel (message);
+         if ((heard & (1 << channel)) == 0)
+            return;
+
+         // What kind of event is it?
+         int data1 = PlaybackEvents.getData1 (message);
+         int data2 = PlaybackEvents.getData2 (message);
+         switch (PlaybackEvents.getCommand (message)) {
+            // Turn notes on.
+            case ShortMessage.NOTE_ON:
+               if (data2 == 0)
+                  applyChannelOff (data1, channel);
+               else
+                  applyChannelOn (data1, channel);
+               break;
+
+            // Turn notes off.
+            case ShortMessage.NOTE_OFF:
+               applyChannelOff (data1, channel);
+               break;
+
+            // Toggle controller changes.
+            case ShortMessage.CONTROL_CHANGE:
+               switch (data1) {
+                  // Pedal on/off.
+                  case 0x40:
+                     if (PlaybackEvents.isPedalOn (message))
+                        applyPedalOn ();
+                     else
+                        applyPedalOff ();
+                     break;
+                  // TODO: more controllers.
+               }
+               break;
+         }
+      }
+
+      public void poll ()
+      {
+         // Apply posted events, playing any new notes right away.  Keys
+         // are redrawn, released and animated on the next frame.
+         for (int event; (event = noteQueue.poll ()) != NoteQueue.EMPTY; )
+            applyEvent (event);
+      }
+
+      public boolean isIdle ()
+      {
+         // Is there input or a seek waiting for us?
+         if (!noteQueue.isEmpty () || seekTick >= 0)
+            return false;
+
+         // Is a file starting, stopping or playing?
+         if (playId != cursorId || engine.isRunning ())
+            return false;
+
+         // Are any keys waiting to be turned off?
+         for (int key = 0; key < TONE_RANGE; key++)
+            if (keyOff[key] != 0)
+               return false;
+
+         // Is the visualizer still animating?
+         return (visual == null || visual.isIdle ());
+      }
+   }
+
+   // Task that loads and starts a MIDI file off the event thread.
+   private class LoadTask implements Runnable
+   {
+      private String file;
+      private int id;
+
+      public LoadTask (String file, int id)
+      {
+         this.file = file;
+         this.id   = id;
+      }
+
+      public void run ()
+      {
+         try {
+            // Parse the file and merge its tracks into a single event
+            // table, or reuse them if we've played this file recently.
+            // MIDI is tracked in UpdateTask.
+            SequenceCache.Entry loaded = cache.load (file);
+
+            // Start the file, unless we were stopped or asked to play
+            // something else while loading.
+            synchronized (playLock) {
+               if (id != loadCount)
+                  return;
+               sequence = loaded.sequence;
+               seekTick = -1;
+               events   = loaded.events;
+               playId++;
+               scheduler.wake ();
+            }
+         }
+         catch (Exception e) {
+            System.out.println (e);
          }
       }
    }
@@ -206,74 +326,129 @@ public class Piano extends JComponent
       lowWidth   = DEFAULT_LOW_WIDTH;
       lowHeight  = DEFAULT_LOW_HEIGHT;
 
-      // Turn on our MIDI device.
+      // Join the shared synthesizer.  The keyboard has channel 0 to
+      // itself, and files play on channels nobody else is using.
       try {
-         synth = MidiSystem.getSynthesizer ();
-         synth.open ();
-         mc = synth.getChannels ();
-         sequencer = MidiSystem.getSequencer ();
-         sequencer.open ();
+         client   = synth.open ("Piano", 0);
+         mc       = synth.getChannels ();
+         receiver = synth.getReceiver ();
       }
       catch (Exception e) {
          System.out.println (e);
       }
 
-      // Use channel 0, instrument 0 (piano).
-      setMidi (0, 0);
+      // Use instrument 0 (piano).
+      setMidi ((client == null) ? 0 : client.getChannel (), 0);
 
       // Activate the layout we specified.
       setLayout (keys, keyLayout, lowestNote);
 
-      // Check for updates and modify visualizer at 62.5fps.
-      timer = new java.util.Timer ();
-      timer.scheduleAtFixedRate (new UpdateTask (timer, 0.016f), 0, 16);
+      // Check for updates and modify visualizer at 62.5fps.  MIDI files
+      // are played from the same loop, sent ahead with timestamps if the
+      // synthesizer keeps its own time.
+      UpdateTask update = new UpdateTask ();
+      engine    = new PlaybackEngine (receiver, update, synth.hasClock ());
+      engine.setLookahead (PLAYBACK_LOOKAHEAD);
+      scheduler = new FrameScheduler (update, FRAME_PERIOD, "Piano update");
+      scheduler.start ();
    }
 
-   public void play (String file) {
-      // Turn playback notes off.
-      allNotesOff (MASK_PLAYBACK);
+   public void play (String file)
+   {
+      // Stop whatever's playing now rather than when the new file is
+      // ready, then load the file in the background so the UI never waits
+      // on the disk.
+      int id;
+      synchronized (playLock) {
+         stop ();
+         id = loadCount;
+      }
+      Thread loader = new Thread (new LoadTask (file, id), "MIDI loader");
+      loader.setDaemon (true);
+      loader.start ();
+   }
 
-      // Attempt to play the file.
-      try {
-         // Does the file exist?  If so, start streaming it.
-         FileInputStream f = new FileInputStream (file);
-         byte[] byteBuf = new byte[0x1 << 20];
-         int bytesRead = f.read (byteBuf, 0, 0x1 << 20);
-         ByteArrayInputStream stream = new ByteArrayInputStream
-                                           (byteBuf, 0, bytesRead);
-
-         // Start the file.
-         sequencer.setSequence (stream);
-         sequencer.start ();
-
-         // Track our MIDI sequence and its tracks.
-         sequence = sequencer.getSequence ();
-         tracks   = sequence.getTracks ();
-
-         // Initialize our MIDI event tracker.  MIDI is tracked in UpdateTask.
-         trackEvent = new int[tracks.length];
-         for (int i = 0; i < tracks.length; i++)
-            trackEvent[i] = 0;
+   public void stop ()
+   {
+      // Turn off our MIDI file and stop following it.  Any file still
+      // loading is abandoned.
+      synchronized (playLock) {
+         loadCount++;
+         sequence = null;
+         events   = null;
+         seekTick = -1;
+         playId++;
+         scheduler.wake ();
       }
-      catch (Exception e) {
-         System.out.println (e);
+   }
+
+   public void seek (long tick)
+   {
+      synchronized (playLock) {
+         if (sequence == null)
+            return;
+
+         // Let UpdateTask move playback and catch our key state up on its
+         // next tick.
+         seekTick = Math.max (0, Math.min (tick, sequence.getTickLength ()));
+         scheduler.wake ();
       }
    }
 
-   public void stop ()
+   public long getTickPosition ()
+   {
+      PlaybackEvents playing = events;
+      if (playing == null)
+         return 0;
+      return playing.microsToTick (engine.getPosition (clock ()));
+   }
+
+   private long clock ()
+   {
+      // Follow the synthesizer's own clock if it has one, so playback
+      // stays locked to the audio.  Otherwise use the system timer.
+      return synth.getMicrosecondPosition ();
+   }
+
+   public long getTickLength ()
+   {
+      Sequence playing = sequence;
+      return (playing == null) ? 0 : playing.getTickLength ();
+   }
+
+   private void applySeek (PlaybackEvents playing, long tick)
    {
-      // Turn off our MIDI file and stop following it.
-      sequencer.stop ();
-      allNotesOff (MASK_PLAYBACK);
-      sequence = null;
-      tracks   = null;
+      // Find out which notes should be held at 'tick', using the nearest
+      // checkpoint and a short replay from there.  Only channels that
+      // aren't muted count.
+      int pedals = playing.getStateAt (tick, seekNotes);
+      boolean pedalDown = (pedals & heard) != 0;
+
+      // Bring our playback keys and channels in line with that state.
+      for (int key = 0; key < PlaybackEvents.NOTE_WORDS * 64; key++) {
+         int mask = 0;
+         for (int channel = 0; channel < PlaybackEvents.CHANNELS; channel++)
+            if ((heard & (1 << channel)) != 0 &&
+                PlaybackEvents.isNoteOn (seekNotes, channel, key))
+               mask |= 1 << channel;
+         keyChannels[key] = mask;
+         if (mask != 0 && (keyMask[key] & MASK_PLAYBACK) == 0)
+            applyNoteOn (key, MASK_PLAYBACK, false);
+         else if (mask == 0 && (keyMask[key] & MASK_PLAYBACK) != 0)
+            applyNoteOff (key, MASK_PLAYBACK, false);
+      }
+      if (pedalDown != pedal) {
+         if (pedalDown)
+            applyPedalOn ();
+         else
+            applyPedalOff ();
+      }
    }
 
    public void buildKeyTables ()
    {
       // Start a new key table.
       keyTable = new Key[keys];
-      keyMask  = new int[TONE_RANGE];
 
       // Set up our state for generating keys.
       int  offset  = 0;
@@ -346,13 +521,60 @@ public class Piano extends JComponent
          // Remember what key this was.
          lastKey = key;
       }
+
+      buildHitTables ();
    }
 
-   public void paint (Graphics g)
+   private void buildHitTables ()
    {
-      // Draw each key individually.
+      // How wide is our keyboard?
+      int width = 0;
       for (int i = 0; i < keys; i++)
-         keyTable[i].paintComponent (g);
+         width = Math.max (width, keyTable[i].getRight ());
+
+      // For every pixel column, remember which upper-tier key and which
+      // lower-tier key (if any) cover it.  Upper-tier keys never overlap
+      // each other, and neither do lower-tier keys, so that's all the
+      // candidates we'll ever need.
+      int[] upper = new int[width], lower = new int[width];
+      for (int x = 0; x < width; x++)
+         upper[x] = lower[x] = -1;
+      char[] layout = keyLayout.toCharArray ();
+      for (int i = 0; i < keys; i++) {
+         int[] tier = (layout[i % layout.length] == '2') ? upper : lower;
+         int left = Math.max (0, keyTable[i].getLeft ());
+         for (int x = left; x < keyTable[i].getRight(); x++)
+            tier[x] = i;
+      }
+      hitUpper = upper;
+      hitLower = lower;
+   }
+
+   private int keyAt (int x, int y)
+   {
+      // Look up the keys under this column and test them, upper tier first.
+      int[] upper = hitUpper, lower = hitLower;
+      if (x < 0 || x >= upper.length)
+         return MOUSE_RELEASED;
+      if (upper[x] >= 0 && keyTable[upper[x]].mouseInBounds (x, y))
+         return upper[x] + lowestNote;
+      if (lower[x] >= 0 && keyTable[lower[x]].mouseInBounds (x, y))
+         return lower[x] + lowestNote;
+      return MOUSE_RELEASED;
+   }
+
+   public void paint (Graphics g)
+   {
+      // Draw each key individually, skipping any outside of the area
+      // we've been asked to repaint.
+      Rectangle clip = g.getClipBounds ();
+      Key[] table = keyTable;
+      for (int i = 0; i < table.length; i++) {
+         if (clip != null && (table[i].getRight() <= clip.x ||
+             table[i].getLeft() >= clip.x + clip.width))
+            continue;
+         table[i].paintComponent (g);
+      }
    }
 
    public Dimension getPreferredSize() {
@@ -410,10 +632,7 @@ public class Piano extends JComponent
                pedalOff ();
                break;
             case Keymap.KEY_PEDAL_TOGGLE:
-               if (pedal)
-                  pedalOff ();
-               else
-                  pedalOn ();
+               pedalToggle ();
                break;
 
             // Volume adjustment.
@@ -449,7 +668,22 @@ public class Piano extends JComponent
    }
 
    public void pedalOn ()
-   { 
+   {
+      post (NoteQueue.encode (NoteQueue.PEDAL_ON, 0, 0));
+   }
+
+   public void pedalOff ()
+   {
+      post (NoteQueue.encode (NoteQueue.PEDAL_OFF, 0, 0));
+   }
+
+   public void pedalToggle ()
+   {
+      post (NoteQueue.encode (NoteQueue.PEDAL_TOGGLE, 0, 0));
+   }
+
+   private void applyPedalOn ()
+   {
       // Turn the pedal on for every key.
       pedal = true;
       for (int key = 0; key < TONE_RANGE; key++)
@@ -457,7 +691,7 @@ public class Piano extends JComponent
             pedalList[key] = true;
    }
 
-   public void pedalOff ()
+   private void applyPedalOff ()
    {
       // Turn the pedal off for every key.
       pedal = false;
@@ -465,7 +699,7 @@ public class Piano extends JComponent
          if (pedalList[key] == true) {
             // Turn MIDI/visualizer notes off.
             if (keyMask[key] == 0) {
-               mc[channel].noteOff (key, 600);
+               voices.noteOff (key);
                visual.noteOff (key);
             }
             pedalList[key] = false;
@@ -479,12 +713,9 @@ public class Piano extends JComponent
          // Turn notes on.
          case MouseEvent.MOUSE_PRESSED:
             this.requestFocusInWindow ();
-            for (int i = 0; i < keys; i++) {
-               if (keyTable[i].mouseInBounds (event.getX(), event.getY())) {
-                  setMouseDown (i + lowestNote);
-                  return;
-               }
-            }
+            int key = keyAt (event.getX(), event.getY());
+            if (key != MOUSE_RELEASED)
+               setMouseDown (key);
             break;
 
          // Turn notes off.
@@ -497,19 +728,13 @@ public class Piano extends JComponent
 
    protected void processMouseMotionEvent (MouseEvent event)
    {
-      // We moved the mouse; what key are we under now?
-      int x = event.getX(), y = event.getY();
-      if (mouseDown != MOUSE_RELEASED) {
-         for (int i = 0; i < keys; i++) {
-            if (keyTable[i].mouseInBounds (x, y)) {
-               setMouseDown (i + lowestNote);
-               return;
-            }
-         }
-      }
+      // Only dragging matters; without a button held, no key is down.
+      if (mouseDown == MOUSE_RELEASED)
+         return;
 
-      // We're not under anything - turn the key off.
-      setMouseDown (MOUSE_RELEASED);
+      // We moved the mouse; what key are we under now?  If we're not
+      // under anything, this turns the key off.
+      setMouseDown (keyAt (event.getX(), event.getY()));
    }
 
    private void setMouseDown (int key)
@@ -533,16 +758,123 @@ public class Piano extends JComponent
    void noteOn (int key, int mask)
    {
       // Play a sound.
-      noteOn (key, mask, true);
+      post (NoteQueue.encode (NoteQueue.NOTE_ON, key, mask));
+   }
+
+   void noteOn (int key, int mask, int velocity)
+   {
+      // Play a sound at a particular velocity.  This is for live input
+      // with its own timing, so play it now instead of on the next frame
+      // (which still draws it).
+      noteQueue.post (NoteQueue.encode (NoteQueue.NOTE_ON, key, mask,
+                                        velocity));
+      scheduler.wakeNow ();
    }
 
    void noteOff (int key, int mask)
    {
       // Turn a sound off.
-      noteOff (key, mask, true);
+      post (NoteQueue.encode (NoteQueue.NOTE_OFF, key, mask));
+   }
+
+   void allNotesOff (int mask)
+   {
+      post (NoteQueue.encode (NoteQueue.ALL_OFF, 0, mask));
+   }
+
+   private void post (int event)
+   {
+      // Queue an event for UpdateTask, and make sure it's awake to see it.
+      noteQueue.post (event);
+      scheduler.wake ();
+   }
+
+   public FrameScheduler getScheduler ()
+   {
+      return scheduler;
    }
 
-   void noteOn (int key, int mask, boolean sound)
+   private void applyEvent (int event)
+   {
+      // Apply an event posted to our queue.
+      int key = NoteQueue.getKey (event), mask = NoteQueue.getMask (event);
+      switch (NoteQueue.getType (event)) {
+         case NoteQueue.NOTE_ON:
+            applyNoteOn (key, mask, true, NoteQueue.getVelocity (event));
+            if ((mask & MASK_MIDI_IN) != 0)
+               midiInput.noteApplied (key);
+            break;
+         case NoteQueue.NOTE_OFF:
+            applyNoteOff (key, mask, true);
+            break;
+         case NoteQueue.PEDAL_ON:
+            applyPedalOn ();
+            break;
+         case NoteQueue.PEDAL_OFF:
+            applyPedalOff ();
+            break;
+         case NoteQueue.PEDAL_TOGGLE:
+            if (pedal)
+               applyPedalOff ();
+            else
+               applyPedalOn ();
+            break;
+         case NoteQueue.ALL_OFF:
+            applyAllNotesOff (mask);
+            break;
+         case NoteQueue.CHANNEL:
+            // Move live notes to another MIDI channel (the 'key').
+            if (mc != null)
+               voices.setChannel (mc[key]);
+            break;
+      }
+   }
+
+   private void setPressed (int key, boolean pressed)
+   {
+      // Change the key's state and remember to redraw it at the end of
+      // this frame.
+      int i = key - lowestNote;
+      Key[] table = keyTable;
+      if (i < 0 || i >= table.length)
+         return;
+      table[i].setPressed (pressed);
+      dirtyKeys[key >> 6] |= 1l << (key & 63);
+   }
+
+   private void repaintDirtyKeys ()
+   {
+      // Find the area covered by every key that changed.
+      Key[] table = keyTable;
+      int left = Integer.MAX_VALUE, top    = Integer.MAX_VALUE,
+          right = Integer.MIN_VALUE, bottom = Integer.MIN_VALUE;
+      for (int word = 0; word < dirtyKeys.length; word++) {
+         for (long bits = dirtyKeys[word]; bits != 0; bits &= bits - 1) {
+            int i = (word << 6) + Long.numberOfTrailingZeros (bits) -
+                    lowestNote;
+            if (i < 0 || i >= table.length)
+               continue;
+            left   = Math.min (left,   table[i].getLeft ());
+            top    = Math.min (top,    table[i].getTop ());
+            right  = Math.max (right,  table[i].getRight ());
+            bottom = Math.max (bottom, table[i].getBottom ());
+         }
+         dirtyKeys[word] = 0;
+      }
+
+      // Ask for a single repaint of that area.  Swing paints it later on
+      // the event thread.
+      if (left < right)
+         repaint (left, top, right - left, bottom - top);
+   }
+
+   private void applyNoteOn (int key, int mask, boolean sound)
+   {
+      applyNoteOn (key, mask, sound, 0);
+   }
+
+   private void applyNoteOn (int key, int mask, boolean sound,
+                             int velocity)
    {
       // Don't bother if it's already on.
       if ((keyMask[key] & mask) == mask)
@@ -556,14 +888,13 @@ public class Piano extends JComponent
       // turn on the visualizer.
       else if (keyMask[key] == 0) {
          // Redraw the key as 'on'.
-         try {
-            keyTable[key - lowestNote].setPressed (true);
-            keyTable[key - lowestNote].paintComponent (getGraphics());
-         } catch (Exception e) { }
+         setPressed (key, true);
 
          // Play a sound.
-         if (sound)
-            mc[channel].noteOn (key, 600);
+         if (sound && velocity > 0)
+            voices.noteOn (key, velocity);
+         else if (sound)
+            voices.noteOn (key);
 
          // Turn on visualizer.
          if (visual != null)
@@ -578,7 +909,29 @@ public class Piano extends JComponent
       keyMask[key] |= mask;
    }
 
-   void noteOff (int key, int mask, boolean sound)
+   private void applyChannelOn (int key, int channel)
+   {
+      // A playback note on in one channel.  The key only turns on for the
+      // first channel to hold it.
+      int held = keyChannels[key];
+      keyChannels[key] = held | (1 << channel);
+      if (held == 0)
+         applyNoteOn (key, MASK_PLAYBACK, false);
+   }
+
+   private void applyChannelOff (int key, int channel)
+   {
+      // A playback note off in one channel.  The key only turns off once no
+      // channel holds it.
+      int held = keyChannels[key];
+      if (held == 0)
+         return;
+      keyChannels[key] = held & ~(1 << channel);
+      if (keyChannels[key] == 0)
+         applyNoteOff (key, MASK_PLAYBACK, false);
+   }
+
+   private void applyNoteOff (int key, int mask, boolean sound)
    {
       // Don't bother if it's already off.
       if ((keyMask[key] & mask) == 0)
@@ -595,15 +948,19 @@ public class Piano extends JComponent
       }
    }
 
-   void allNotesOff (int mask)
+   private void applyAllNotesOff (int mask)
    {
       // Be safe; no pedal.
-      pedalOff ();
+      applyPedalOff ();
+
+      // Playback notes are no longer held on any channel.
+      if ((mask & MASK_PLAYBACK) != 0)
+         Arrays.fill (keyChannels, 0);
 
       // Turn notes off.
       for (int key = 0; key < TONE_RANGE; key++)
          if ((keyMask[key] & mask) > 0)
-            noteOff (key, mask);
+            applyNoteOff (key, mask, true);
    }
 
    public void setLayout (int keys, String keyLayout, int lowestNote)
@@ -644,12 +1001,42 @@ public class Piano extends JComponent
          repaint ();
    }
 
+   public SequenceCache getSequenceCache ()
+   {
+      return cache;
+   }
+
+   public void openMidiInput (MidiDevice.Info info)
+      throws MidiUnavailableException
+   {
+      // Play notes from a MIDI device, or from nothing if 'info' is null.
+      if (info == null)
+         midiInput.close ();
+      else
+         midiInput.open (info);
+   }
+
+   public MidiInput getMidiInput ()
+   {
+      return midiInput;
+   }
+
+   public ChannelFilter getChannelFilter ()
+   {
+      return filter;
+   }
+
+   public VoiceManager getVoiceManager ()
+   {
+      return voices;
+   }
+
    public void assignKeymap (Keymap keymap)
    {
       this.keymap = keymap;
    }
 
-   public void assignVisual (Visual visual)
+   public void assignVisual (Visualizer visual)
    {
       this.visual = visual;
    }
@@ -660,8 +1047,15 @@ public class Piano extends JComponent
       this.channel    = channel;
       this.instrument = instrument;
 
-      // Use the instrument requested.
+      // Use the instrument requested.  Our voices belong to UpdateTask
+      // once it's running, so it moves them to the new channel, after
+      // any notes posted before now.
       try {
+         if (mc != null && scheduler == null)
+            voices.setChannel (mc[channel]);
+         else if (mc != null)
+            post (NoteQueue.encode (NoteQueue.CHANNEL, channel, 0));
+         synth.loadInstrument (instrument);
          mc[channel].programChange (instrument);
       }
       catch (Exception e) {
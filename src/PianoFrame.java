@@ -10,7 +10,7 @@ public class PianoFrame extends JFrame
       // Initialize our frame.
       super ("Color Keyboard");
       setSize (800, 550);
-      setResizable (false);
+      setMinimumSize (getSize ());
 
       // Add the piano to our frame.
       piano = new PianoPanel ();
@@ -7,6 +7,8 @@ import java.util.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.awt.Color;
+import java.io.File;
+import javax.sound.midi.MidiDevice;
 
 public class PianoPanel extends JPanel implements ActionListener
 {
@@ -49,6 +51,10 @@ public class PianoPanel extends JPanel implements ActionListener
    // Instrument patch.
    private JTextField instrumentText = new JTextField ("0", 3);
 
+   // MIDI input device, chosen from 'midiInputs' ("None" comes first).
+   private MidiDevice.Info[] midiInputs = MidiInput.getDevices ();
+   private JComboBox<String> midiInputBox = new JComboBox<String> ();
+
    // MIDI control.
    private JTextField midiText = new JTextField ("87-15b.mid", 12);
    private JButton playButton  = new JButton ("Play");
@@ -59,18 +65,27 @@ public class PianoPanel extends JPanel implements ActionListener
    private Visual visual   = new Visual (500, 200);
    private JLabel hueLabel = new JLabel ("Hue: 360\u00b0");
    private JLabel satLabel = new JLabel ("Saturation: 100%");
+   private JLabel voiceLabel = new JLabel ("Voices: N/A");
+   private Dimension visualMargin = null;
+
+   // Instant replay.  The first press starts recording; after that, each
+   // press saves the last REPLAY_SECONDS to a new directory.
+   public static final float REPLAY_SECONDS = 10f;
+   private JButton replayButton = new JButton ("Record");
 
    // Piano.
    private Keymap keymap         = new Keymap ();
    private java.util.Timer timer = new java.util.Timer ();
    private Piano piano; // (Initialized in constructor)
 
-   // Visualizer statistics (hue/saturation) update routine.
+   // Visualizer statistics (hue/saturation) and voice usage update routine.
    public class UpdateTask extends TimerTask
    {
       Color lastColor = Color.white;
       public void run ()
       {
+         updateVoices ();
+
          // Has the color changed?  If not, we don't need to do anything.
          Color color = visual.averageColor();
          if (color.getRGB() == lastColor.getRGB())
@@ -105,6 +120,31 @@ public class PianoPanel extends JPanel implements ActionListener
       }
    }
 
+   private void updateVoices ()
+   {
+      // Voices sounding in all, and how many of those are each client's.
+      // Whatever's left is the MIDI file's.
+      // If there's no synthesizer, there's nothing to count.
+      SynthService synth = SynthService.getInstance ();
+      int max = synth.getMaxPolyphony ();
+      String text = "Voices: N/A";
+      if (max > 0) {
+         int[] usage = synth.getVoiceUsage ();
+         int total = 0;
+         for (int i = 0; i < usage.length; i++)
+            total += usage[i];
+         text = "Voices: " + total + "/" + max;
+         SynthService.Client[] clients = synth.getClients ();
+         for (int i = 0; i < clients.length; i++)
+            text += ((i == 0) ? " (" : ", ") + clients[i].getName () + " " +
+                    usage[clients[i].getChannel ()];
+         if (clients.length > 0)
+            text += ")";
+      }
+      if (!text.equals (voiceLabel.getText ()))
+         voiceLabel.setText (text);
+   }
+
    public class TextChanged implements DocumentListener
    {
       private Object source = null;
@@ -171,6 +211,8 @@ public class PianoPanel extends JPanel implements ActionListener
       add (metronomeButton);
       add (new JLabel ("Instrument: "));
       add (instrumentText);
+      add (new JLabel ("MIDI In: "));
+      add (midiInputBox);
       add (new HorizDivider());
 
       // MIDI playback controls.
@@ -184,11 +226,19 @@ public class PianoPanel extends JPanel implements ActionListener
       add (visual);
       add (new HorizDivider());
 
-      // Hue & Saturation reports.
+      // Hue, Saturation & voice usage reports.
       add (hueLabel);
       add (satLabel);
+      add (voiceLabel);
+      add (replayButton);
       add (new HorizDivider());
 
+      // Grow and shrink the visualizer along with the window.
+      addComponentListener (new ComponentAdapter () {
+         public void componentResized (ComponentEvent e)
+            { resizeVisual (); }
+      });
+
       // Route all events to this class for convenience.
       metronomeButton.addActionListener (this);
       rebuildButton.addActionListener (this);
@@ -197,6 +247,11 @@ public class PianoPanel extends JPanel implements ActionListener
       playButton.addActionListener (this);
       stopButton.addActionListener (this);
       helpButton.addActionListener (this);
+      replayButton.addActionListener (this);
+      midiInputBox.addItem ("None");
+      for (int i = 0; i < midiInputs.length; i++)
+         midiInputBox.addItem (midiInputs[i].getName ());
+      midiInputBox.addActionListener (this);
       metronomeText.getDocument().addDocumentListener (
          new TextChanged (metronomeText));
       instrumentText.getDocument().addDocumentListener (
@@ -228,6 +283,26 @@ public class PianoPanel extends JPanel implements ActionListener
       }
    }
 
+   private void resizeVisual ()
+   {
+      // The first time we're sized, remember how much room everything
+      // else needs.  After that, give the visualizer whatever's left.
+      Dimension size = getSize ();
+      Dimension visualSize = visual.getPreferredSize ();
+      if (visualMargin == null) {
+         visualMargin = new Dimension (size.width  - visualSize.width,
+                                       size.height - visualSize.height);
+         return;
+      }
+      Dimension newSize = new Dimension (
+         Math.max (Visual.DEFAULT_WIDTH,  size.width  - visualMargin.width),
+         Math.max (Visual.DEFAULT_HEIGHT, size.height - visualMargin.height));
+      if (!newSize.equals (visualSize)) {
+         visual.setPreferredSize (newSize);
+         revalidate ();
+      }
+   }
+
    public void focusKeyboard ()
    {
       // Focus piano.
@@ -301,6 +376,29 @@ public class PianoPanel extends JPanel implements ActionListener
       else if (source == stopButton) {
          piano.stop ();
       }
+      // Start recording the visualizer, or save what we've recorded.
+      else if (source == replayButton) {
+         if (visual.getRecorder () == null) {
+            visual.setRecorder (new FrameRecorder ());
+            replayButton.setText ("Save Replay");
+         }
+         else {
+            File path = new File ("replay-" + System.currentTimeMillis ());
+            if (visual.getRecorder().save (path, REPLAY_SECONDS))
+               System.out.println ("Saving replay to " + path);
+         }
+      }
+      // Play from a different MIDI input device.
+      else if (source == midiInputBox) {
+         int i = midiInputBox.getSelectedIndex () - 1;
+         try {
+            piano.openMidiInput ((i >= 0) ? midiInputs[i] : null);
+         }
+         catch (Exception e) {
+            System.out.println (e);
+            midiInputBox.setSelectedIndex (0);
+         }
+      }
       // Help window.
       else if (source == helpButton) {
          Container container = this.getParent();
@@ -0,0 +1,319 @@
+import javax.sound.midi.*;
+import java.util.Arrays;
+
+// Plays a PlaybackEvents table against a single clock.  Every event is read
+// once and handed to both the synthesizer (through a Receiver) and a
+// Listener that keeps track of keys and visuals, so sound and pictures can
+// never drift apart.  The clock is supplied by the caller on every call, in
+// microseconds, which lets the same engine follow a sound card or a virtual
+// clock for offline rendering.
+//
+// With timestamps, sound can also be sent a little ahead of time, so the
+// synthesizer plays each event on its exact microsecond however late the
+// caller is.  The listener still hears about each event when it's due.
+//
+// Whenever playback starts or jumps, every channel the file uses is put
+// back the way the file would have left it at that point - program,
+// controllers and pitch bend - so a seek sounds like playing through.
+//
+// A file's channels can be moved onto other channels of the receiver, so
+// it can share a synthesizer without touching anyone else's channels.
+// Stopping and resetting only ever touch the channels the file uses.  If
+// percussion moves off its usual channel, its new channel is switched to
+// General MIDI 2's rhythm bank, which plays drums on any channel.
+class PlaybackEngine
+{
+   // Receives every event as it's played.
+   interface Listener
+   {
+      void playbackEvent (int message);
+   }
+
+   // Where events go.
+   private Receiver receiver;
+   private Listener listener;
+   private boolean  timestamps;
+   private long     lookahead = 0;
+
+   // GM2's rhythm bank (bank select MSB).
+   static public final int RHYTHM_BANK = 0x78;
+
+   // What we're playing, and where we are.  'start' is the clock time at
+   // which the sequence's time zero happens (or happened).  Events before
+   // 'next' have gone to the listener, and events before 'sent' have gone
+   // to the receiver, the latest stamped at 'sentUntil'.  'channelMap'
+   // has the receiver's channel for each of the file's channels.
+   private PlaybackEvents events = null;
+   private int[] channelMap = null;
+   private int  next = 0;
+   private int  sent = 0;
+   private long sentUntil = 0;
+   private volatile long    start   = 0;
+   private volatile long    paused  = 0;
+   private volatile boolean running = false;
+
+   // Whether we stopped by running out of events, rather than being told
+   // to.
+   private boolean ended = false;
+
+   // When the last silence() takes effect on our clock, or -1 if it was
+   // right away.  Nothing new is played before then.
+   private long cutTime = -1;
+
+   // Scratch space for restore().
+   private int[] control =
+      new int[PlaybackEvents.CHANNELS * PlaybackEvents.CONTROL_WORDS];
+
+   public PlaybackEngine (Receiver receiver, Listener listener,
+                          boolean timestamps)
+   {
+      // If 'timestamps' is set, the receiver is given each event's exact
+      // time on our clock.  Otherwise events are sent to play immediately.
+      this.receiver   = receiver;
+      this.listener   = listener;
+      this.timestamps = timestamps;
+   }
+
+   public void setLookahead (long lookahead)
+   {
+      // How far ahead of the clock (in microseconds) events are sent to
+      // the receiver.  Only used with timestamps.
+      this.lookahead = timestamps ? Math.max (0, lookahead) : 0;
+   }
+
+   public void load (PlaybackEvents events)
+   {
+      load (events, null);
+   }
+
+   public void load (PlaybackEvents events, int[] channelMap)
+   {
+      // 'channelMap' moves each of the file's channels to another channel
+      // of the receiver.  If it's null, they stay where they are.
+      stop ();
+      if (channelMap == null) {
+         channelMap = new int[PlaybackEvents.CHANNELS];
+         for (int channel = 0; channel < channelMap.length; channel++)
+            channelMap[channel] = channel;
+      }
+      this.channelMap = channelMap.clone ();
+      this.events = events;
+      next   = 0;
+      sent   = 0;
+      paused = 0;
+   }
+
+   public void start (long clock)
+   {
+      // Resume from wherever we last were, with every channel as it
+      // should be there.
+      if (events == null || running)
+         return;
+      clock   = Math.max (clock, cutTime);
+      start   = clock - paused;
+      running = true;
+      ended   = false;
+      restore (next, timestamps ? clock : -1);
+   }
+
+   public void stop ()
+   {
+      // Anything sent ahead is cut off, and will be sent again if we
+      // start again.
+      if (running)
+         silence ();
+      running = false;
+      ended   = false;
+      sent    = next;
+   }
+
+   public void seek (long tick, long clock)
+   {
+      if (events == null)
+         return;
+
+      // Cut off whatever was sounding.  If we've sent sound ahead, it
+      // can't be taken back, so start again once it's over rather than
+      // have the cut land on our new notes.
+      if (running)
+         silence ();
+      clock = Math.max (clock, cutTime);
+
+      // Start over at 'tick', including every event on that tick.  Seeking
+      // by tick rather than time means we can't land a tick early through
+      // rounding and play that tick's events twice.
+      tick = Math.max (0, tick);
+      long position = events.tickToMicros (tick);
+      next   = events.indexAt (tick);
+      sent   = next;
+      paused = position;
+      start  = clock - position;
+
+      // If we'd played to the end, play on from the new position, or
+      // whatever it shows would be left hanging.
+      if (ended)
+         running = true;
+      ended = false;
+      if (running)
+         restore (next, timestamps ? clock : -1);
+   }
+
+   public int advance (long clock)
+   {
+      if (!running)
+         return 0;
+
+      // Send the synthesizer every event due within our lookahead...
+      PlaybackEvents playing = events;
+      long position = clock - start;
+      int  first    = next;
+      for (; sent < playing.size(); sent++) {
+         long time = playing.getMicros (sent);
+         if (time > position + lookahead)
+            break;
+         sentUntil = start + time;
+         int message = playing.getMessage (sent);
+         if (message == PlaybackEvents.SYSTEM_RESET)
+            reset (timestamps ? sentUntil : -1);
+         else
+            send (message, timestamps ? sentUntil : -1);
+      }
+
+      // ...and the listener every event that's due now.
+      for (; next < playing.size(); next++) {
+         if (playing.getMicros (next) > position)
+            break;
+         listener.playbackEvent (playing.getMessage (next));
+      }
+
+      // Stop once we've run out of events.
+      if (next >= playing.size()) {
+         running = false;
+         ended   = true;
+      }
+      paused = position;
+      return next - first;
+   }
+
+   public boolean isRunning ()
+   {
+      return running;
+   }
+
+   public long getPosition (long clock)
+   {
+      return running ? (clock - start) : paused;
+   }
+
+   private void send (int message, long timestamp)
+   {
+      if (receiver == null)
+         return;
+      try {
+         // Move the message to its channel.  Moved percussion has to stay
+         // in the rhythm bank.
+         if ((message & 0xF0) != 0xF0) {
+            int channel = message & 0x0F;
+            if (isMovedPercussion (channel) &&
+                (message & 0xFFF0) == ShortMessage.CONTROL_CHANGE)
+               message = control (channel, 0x00, RHYTHM_BANK);
+            message = (message & ~0x0F) | channelMap[channel];
+         }
+         ShortMessage sm = new ShortMessage ();
+         sm.setMessage (message & 0xFF, PlaybackEvents.getData1 (message),
+                        PlaybackEvents.getData2 (message));
+         receiver.send (sm, timestamp);
+      }
+      catch (InvalidMidiDataException e) {
+         System.out.println (e);
+      }
+   }
+
+   private long getCutTime ()
+   {
+      // When sound we've sent ahead will have finished, or -1 to cut it
+      // off right away.
+      return (timestamps && lookahead > 0) ? sentUntil + 1 : -1;
+   }
+
+   private void silence ()
+   {
+      // Turn off the pedal and every note on the file's channels, after
+      // anything we've already sent.
+      cutTime = getCutTime ();
+      int used = events.getChannelMask ();
+      for (int channel = 0; channel < PlaybackEvents.CHANNELS; channel++) {
+         if ((used & (1 << channel)) == 0)
+            continue;
+         send (control (channel, 0x40, 0), cutTime);
+         send (control (channel, 0x7B, 0), cutTime);
+      }
+   }
+
+   private void reset (long timestamp)
+   {
+      // The file asked for a system reset.  Reset just our channels.
+      Arrays.fill (control, -1);
+      sendState (timestamp);
+   }
+
+   private void restore (int index, long timestamp)
+   {
+      // Put every channel the file uses into the state it would be in just
+      // before event 'index': controllers reset to their defaults, then
+      // everything the file has changed since.
+      events.getControlState (index, control);
+      sendState (timestamp);
+   }
+
+   private void sendState (long timestamp)
+   {
+      // Send the state in 'control' to every channel the file uses.  Bank
+      // select has to come before the program change it applies to.
+      int used = events.getChannelMask ();
+      for (int channel = 0; channel < PlaybackEvents.CHANNELS; channel++) {
+         if ((used & (1 << channel)) == 0)
+            continue;
+         int base = channel * PlaybackEvents.CONTROL_WORDS;
+         send (control (channel, 0x79, 0), timestamp);
+         send (control (channel, 0x00, isMovedPercussion (channel) ?
+                        RHYTHM_BANK : get (base + 0x00, 0)), timestamp);
+         send (control (channel, 0x20, get (base + 0x20, 0)), timestamp);
+         send (ShortMessage.PROGRAM_CHANGE | channel |
+               (get (base + PlaybackEvents.PROGRAM, 0) << 8), timestamp);
+         int bend = get (base + PlaybackEvents.PITCH_BEND, 0x2000);
+         send (ShortMessage.PITCH_BEND | channel | ((bend & 0x7F) << 8) |
+               ((bend >> 7) << 16), timestamp);
+         if (control[base + PlaybackEvents.PRESSURE] >= 0)
+            send (ShortMessage.CHANNEL_PRESSURE | channel |
+                  (control[base + PlaybackEvents.PRESSURE] << 8), timestamp);
+
+         // Volume and pan aren't touched by "reset all controllers", so
+         // they're always sent.
+         for (int i = 0x01; i < 120; i++) {
+            int value = get (base + i, (i == 0x07) ? 100 :
+                                       (i == 0x0A) ? 64 : -1);
+            if (value >= 0 && i != 0x20)
+               send (control (channel, i, value), timestamp);
+         }
+      }
+   }
+
+   private boolean isMovedPercussion (int channel)
+   {
+      return channel == SynthService.PERCUSSION_CHANNEL &&
+             channelMap[channel] != channel;
+   }
+
+   private int get (int i, int otherwise)
+   {
+      // A value from 'control', or 'otherwise' if it was never set.
+      return (control[i] >= 0) ? control[i] : otherwise;
+   }
+
+   static private int control (int channel, int controller, int value)
+   {
+      return ShortMessage.CONTROL_CHANGE | channel | (controller << 8) |
+             (value << 16);
+   }
+}
@@ -0,0 +1,499 @@
+import javax.sound.midi.*;
+import java.util.Arrays;
+
+// Every short MIDI message in a sequence, merged from all of its tracks and
+// sorted by tick.  This is built once when a sequence is loaded so playback
+// only has to walk a single cursor forward instead of polling every track.
+class PlaybackEvents
+{
+   // Parallel event tables.  Messages are packed into a single int as
+   // (status | data1 << 8 | data2 << 16).  Meta and SysEx events are
+   // stripped, except for system-wide resets (General MIDI, GS and XG),
+   // which are kept as a single SYSTEM_RESET.  SysEx can't be moved to
+   // other channels, and a reset would reset everyone else's channels
+   // too; this way a player can reset just the channels it plays on.
+   // Other system messages (clock, song position and so on) are stripped
+   // too, so every other message is a channel message.
+   static public final int SYSTEM_RESET = 0xFF;
+   private long[] ticks;
+   private long[] micros;
+   private int[]  messages;
+   private int    count;
+
+   // Tempo map: the tick of every tempo change, the time (in microseconds)
+   // it happens, and the new tempo (in microseconds per quarter note).
+   // There's always an entry at tick 0.  SMPTE sequences ignore tempo and
+   // use 'ticksPerSecond' instead.
+   static public final int DEFAULT_TEMPO = 500000;
+   private long[] tempoTicks;
+   private long[] tempoMicros;
+   private int[]  tempoValues;
+   private int    resolution;
+   private double ticksPerSecond;
+
+   // Seek checkpoints, one every 'checkpointTicks' ticks.  Each one records
+   // the first event at or after its tick and the playback state just
+   // before that event, for every channel: which notes are held
+   // (NOTE_WORDS longs per channel, one bit per note) and whether the
+   // sustain pedal is down (one bit per channel).
+   static public final int CHANNELS    = 16;
+   static public final int NOTE_WORDS  = 2;
+   static public final int STATE_WORDS = CHANNELS * NOTE_WORDS;
+   private long   checkpointTicks;
+   private int[]  checkEvent;
+   private long[] checkNotes;
+   private int[]  checkPedal;
+
+   // Channel state to restore after a seek, the way a Sequencer chases
+   // controllers: the last value of every controller, the program, the
+   // pitch bend and the channel pressure, CONTROL_WORDS ints per channel.
+   // 'controlEvents' indexes every event that changes them, so working out
+   // the state anywhere only means walking those.  'channelMask' has a bit
+   // for every channel with events.
+   static public final int PROGRAM       = 128;
+   static public final int PITCH_BEND    = 129;
+   static public final int PRESSURE      = 130;
+   static public final int CONTROL_WORDS = 131;
+   private int[] controlEvents;
+   private int   controlCount;
+   private int   channelMask;
+
+   public PlaybackEvents (Sequence sequence)
+   {
+      // Checkpoint every four beats (or frames, for SMPTE timing).
+      this (sequence, Math.max (1, sequence.getResolution() * 4));
+   }
+
+   public PlaybackEvents (Sequence sequence, long checkpointTicks)
+   {
+      Track[] tracks = sequence.getTracks ();
+
+      // Pack every event we keep, once, track after track.  Track i's
+      // events are from first[i] up to first[i + 1].
+      int total = 0;
+      for (int i = 0; i < tracks.length; i++)
+         total += tracks[i].size();
+      long[] trackTicks    = new long[total];
+      int[]  trackMessages = new int[total];
+      int[]  first         = new int[tracks.length + 1];
+      count = 0;
+      for (int i = 0; i < tracks.length; i++) {
+         first[i] = count;
+         for (int j = 0; j < tracks[i].size(); j++) {
+            MidiEvent event = tracks[i].get(j);
+            int message = pack (event.getMessage());
+            if (message < 0)
+               continue;
+            trackTicks[count]    = event.getTick();
+            trackMessages[count] = message;
+            count++;
+         }
+      }
+      first[tracks.length] = count;
+
+      // Tracks are already sorted by tick, so merge them through a heap of
+      // each track's next event, earliest first.  Ties go to the lowest
+      // track, which keeps events at the same tick in a stable order.
+      ticks    = new long[count];
+      messages = new int[count];
+      int[] next = new int[tracks.length];
+      int[] heap = new int[tracks.length];
+      int   size = 0;
+      for (int i = 0; i < tracks.length; i++) {
+         next[i] = first[i];
+         if (first[i] < first[i + 1])
+            heap[size++] = i;
+      }
+      for (int k = size / 2 - 1; k >= 0; k--)
+         siftDown (heap, size, k, next, trackTicks);
+      for (int n = 0; n < count; n++) {
+         int i = heap[0];
+         ticks[n]    = trackTicks[next[i]];
+         messages[n] = trackMessages[next[i]];
+         if (++next[i] == first[i + 1])
+            heap[0] = heap[--size];
+         siftDown (heap, size, 0, next, trackTicks);
+      }
+
+      buildTempoMap (sequence);
+      micros = new long[count];
+      for (int n = 0; n < count; n++)
+         micros[n] = tickToMicros (ticks[n]);
+      buildCheckpoints (checkpointTicks);
+      buildControlIndex ();
+   }
+
+   static private void siftDown (int[] heap, int size, int k, int[] next,
+                                 long[] trackTicks)
+   {
+      // Move the track at heap[k] down until no track below it comes
+      // first.
+      int track = heap[k];
+      while (2 * k + 1 < size) {
+         int child = 2 * k + 1;
+         if (child + 1 < size &&
+             comesFirst (heap[child + 1], heap[child], next, trackTicks))
+            child++;
+         if (!comesFirst (heap[child], track, next, trackTicks))
+            break;
+         heap[k] = heap[child];
+         k = child;
+      }
+      heap[k] = track;
+   }
+
+   static private boolean comesFirst (int a, int b, int[] next,
+                                      long[] trackTicks)
+   {
+      // Does track a's next event come before track b's?
+      long tickA = trackTicks[next[a]], tickB = trackTicks[next[b]];
+      return tickA < tickB || (tickA == tickB && a < b);
+   }
+
+   static private int pack (MidiMessage message)
+   {
+      // Pack a message we keep into an int, or return -1.
+      if (message instanceof ShortMessage) {
+         ShortMessage sm = (ShortMessage) message;
+         if (sm.getStatus() >= 0xF0)
+            return -1;
+         return sm.getStatus() | (sm.getData1() << 8) | (sm.getData2() << 16);
+      }
+      if (message instanceof SysexMessage &&
+          isReset (((SysexMessage) message).getData ()))
+         return SYSTEM_RESET;
+      return -1;
+   }
+
+   static private boolean isReset (byte[] data)
+   {
+      // Universal "General MIDI on" (or GM2 on, or GM off), Roland's "GS
+      // reset" and Yamaha's "XG system on".  Device numbers don't matter.
+      if (data.length >= 4 && data[0] == 0x7E && data[2] == 0x09)
+         return data[3] >= 0x01 && data[3] <= 0x03;
+      if (data.length >= 7 && data[0] == 0x41 && data[2] == 0x42)
+         return data[3] == 0x12 && data[4] == 0x40 && data[5] == 0x00 &&
+                data[6] == 0x7F;
+      if (data.length >= 7 && data[0] == 0x43 && (data[1] & 0xF0) == 0x10)
+         return data[2] == 0x4C && data[3] == 0x00 && data[4] == 0x00 &&
+                data[5] == 0x7E && data[6] == 0x00;
+      return false;
+   }
+
+   private void buildTempoMap (Sequence sequence)
+   {
+      resolution = Math.max (1, sequence.getResolution ());
+      if (sequence.getDivisionType() != Sequence.PPQ)
+         ticksPerSecond = sequence.getDivisionType() * resolution;
+
+      // Collect every tempo change from every track, sorted by tick.  There
+      // are rarely more than a handful, so an insertion sort will do.
+      Track[] tracks = sequence.getTracks ();
+      int changes = 1;
+      for (int i = 0; i < tracks.length; i++)
+         for (int j = 0; j < tracks[i].size(); j++)
+            if (isTempoChange (tracks[i].get(j).getMessage()))
+               changes++;
+      tempoTicks  = new long[changes];
+      tempoMicros = new long[changes];
+      tempoValues = new int[changes];
+      tempoValues[0] = DEFAULT_TEMPO;
+      int n = 1;
+      for (int i = 0; i < tracks.length; i++) {
+         for (int j = 0; j < tracks[i].size(); j++) {
+            MidiEvent event = tracks[i].get (j);
+            if (!isTempoChange (event.getMessage()))
+               continue;
+            byte[] data = ((MetaMessage) event.getMessage()).getData ();
+            int k = n++;
+            for (; k > 1 && tempoTicks[k - 1] > event.getTick(); k--) {
+               tempoTicks[k]  = tempoTicks[k - 1];
+               tempoValues[k] = tempoValues[k - 1];
+            }
+            tempoTicks[k]  = event.getTick ();
+            tempoValues[k] = ((data[0] & 0xFF) << 16) |
+                             ((data[1] & 0xFF) << 8) | (data[2] & 0xFF);
+         }
+      }
+
+      // Work out when each change happens.
+      for (int i = 1; i < changes; i++)
+         tempoMicros[i] = tempoMicros[i - 1] + (long) ((double)
+            (tempoTicks[i] - tempoTicks[i - 1]) * tempoValues[i - 1] /
+            resolution);
+   }
+
+   static private boolean isTempoChange (MidiMessage message)
+   {
+      return (message instanceof MetaMessage &&
+              ((MetaMessage) message).getType() == 0x51 &&
+              ((MetaMessage) message).getData().length >= 3);
+   }
+
+   public long tickToMicros (long tick)
+   {
+      if (ticksPerSecond > 0)
+         return (long) (tick * 1000000.0 / ticksPerSecond);
+
+      // Find the last tempo change before 'tick' and count from there.
+      int i = tempoTicks.length - 1;
+      while (i > 0 && tempoTicks[i] > tick)
+         i--;
+      return tempoMicros[i] + (long) ((double) (tick - tempoTicks[i]) *
+                                      tempoValues[i] / resolution);
+   }
+
+   public long microsToTick (long time)
+   {
+      if (ticksPerSecond > 0)
+         return (long) (time * ticksPerSecond / 1000000.0);
+
+      int i = tempoMicros.length - 1;
+      while (i > 0 && tempoMicros[i] > time)
+         i--;
+      return tempoTicks[i] + (long) ((double) (time - tempoMicros[i]) *
+                                     resolution / tempoValues[i]);
+   }
+
+   private void buildCheckpoints (long checkpointTicks)
+   {
+      // Allocate one checkpoint for every interval up to the last event.
+      this.checkpointTicks = checkpointTicks;
+      int checkpoints = 1;
+      if (count > 0)
+         checkpoints += (int) (ticks[count - 1] / checkpointTicks);
+      checkEvent = new int[checkpoints];
+      checkNotes = new long[checkpoints * STATE_WORDS];
+      checkPedal = new int[checkpoints];
+
+      // Play through the whole table once, snapshotting our state every
+      // time we cross a checkpoint.
+      long[] notes = new long[STATE_WORDS];
+      int    pedal = 0;
+      int event = 0;
+      for (int i = 0; i < checkpoints; i++) {
+         long tick = i * checkpointTicks;
+         for (; event < count && ticks[event] < tick; event++)
+            pedal = applyMessage (messages[event], notes, pedal);
+         checkEvent[i] = event;
+         System.arraycopy (notes, 0, checkNotes, i * STATE_WORDS,
+                           STATE_WORDS);
+         checkPedal[i] = pedal;
+      }
+   }
+
+   public int getStateAt (long tick, long[] notes)
+   {
+      // Fill 'notes' (STATE_WORDS long) with the notes held on every
+      // channel at 'tick', and return the channels with the pedal down as
+      // bits.  Find the last checkpoint at or before 'tick'...
+      int i = (int) Math.min (Math.max (tick, 0) / checkpointTicks,
+                              checkEvent.length - 1);
+      System.arraycopy (checkNotes, i * STATE_WORDS, notes, 0, STATE_WORDS);
+      int pedal = checkPedal[i];
+
+      // ...then replay the few events between it and 'tick'.
+      for (int event = checkEvent[i]; event < count && ticks[event] <= tick;
+           event++)
+         pedal = applyMessage (messages[event], notes, pedal);
+      return pedal;
+   }
+
+   private void buildControlIndex ()
+   {
+      // Note which channels are used, and where their state changes.
+      controlCount = 0;
+      channelMask  = 0;
+      for (int n = 0; n < count; n++) {
+         if (messages[n] != SYSTEM_RESET)
+            channelMask |= 1 << getChannel (messages[n]);
+         if (isControl (messages[n]))
+            controlCount++;
+      }
+      controlEvents = new int[controlCount];
+      for (int n = 0, i = 0; n < count; n++)
+         if (isControl (messages[n]))
+            controlEvents[i++] = n;
+   }
+
+   static private boolean isControl (int message)
+   {
+      // Channel mode messages (controllers 120 and up) act on the notes
+      // sounding rather than the channel's state, apart from "reset all
+      // controllers".
+      if (message == SYSTEM_RESET)
+         return true;
+      switch (getCommand (message)) {
+         case ShortMessage.CONTROL_CHANGE:
+            return getData1 (message) < 120 || getData1 (message) == 0x79;
+         case ShortMessage.PROGRAM_CHANGE:
+         case ShortMessage.PITCH_BEND:
+         case ShortMessage.CHANNEL_PRESSURE:
+            return true;
+      }
+      return false;
+   }
+
+   public void getControlState (int index, int[] state)
+   {
+      // Fill 'state' (CHANNELS * CONTROL_WORDS long) with every channel's
+      // state just before event 'index', or -1 for anything not set yet.
+      Arrays.fill (state, -1);
+      for (int i = 0; i < controlCount && controlEvents[i] < index; i++) {
+         int message = messages[controlEvents[i]];
+         if (message == SYSTEM_RESET) {
+            Arrays.fill (state, -1);
+            continue;
+         }
+         int base = getChannel (message) * CONTROL_WORDS;
+         int data1 = getData1 (message), data2 = getData2 (message);
+         switch (getCommand (message)) {
+            case ShortMessage.CONTROL_CHANGE:
+               if (data1 != 0x79)
+                  state[base + data1] = data2;
+               else
+                  resetControllers (state, base);
+               break;
+            case ShortMessage.PROGRAM_CHANGE:
+               state[base + PROGRAM] = data1;
+               break;
+            case ShortMessage.PITCH_BEND:
+               state[base + PITCH_BEND] = data1 | (data2 << 7);
+               break;
+            case ShortMessage.CHANNEL_PRESSURE:
+               state[base + PRESSURE] = data1;
+               break;
+         }
+      }
+   }
+
+   static private void resetControllers (int[] state, int base)
+   {
+      // "Reset all controllers" leaves the bank, volume and pan alone.
+      for (int i = 0; i < 120; i++)
+         if (i != 0x00 && i != 0x20 && i != 0x07 && i != 0x0A)
+            state[base + i] = -1;
+      state[base + PITCH_BEND] = -1;
+      state[base + PRESSURE]   = -1;
+   }
+
+   public int getChannelMask ()
+   {
+      return channelMask;
+   }
+
+   public int indexAt (long tick)
+   {
+      // The first event at or after 'tick'.
+      return indexAfter (tick - 1);
+   }
+
+   public int indexAfter (long tick)
+   {
+      // Binary search for the first event that happens after 'tick'.
+      int low = 0, high = count;
+      while (low < high) {
+         int mid = (low + high) >>> 1;
+         if (ticks[mid] <= tick)
+            low = mid + 1;
+         else
+            high = mid;
+      }
+      return low;
+   }
+
+   static public boolean isNoteOn (long[] notes, int channel, int note)
+   {
+      return (notes[channel * NOTE_WORDS + (note >> 6)] &
+              (1l << (note & 63))) != 0;
+   }
+
+   static public boolean isPedalOn (int message)
+   {
+      // Sustain pedal values of 64 and above mean 'down'.
+      return getData2 (message) >= 0x40;
+   }
+
+   static private int applyMessage (int message, long[] notes, int pedal)
+   {
+      // Track notes and the pedal the same way Piano does during playback,
+      // separately for each channel.
+      int note = getData1 (message), channel = getChannel (message);
+      int word = channel * NOTE_WORDS + (note >> 6);
+
+      // Velocity zero is really a NOTE_OFF.
+      int command = getCommand (message);
+      if (command == ShortMessage.NOTE_ON && getData2 (message) == 0)
+         command = ShortMessage.NOTE_OFF;
+      switch (command) {
+         case ShortMessage.NOTE_ON:
+            notes[word] |= (1l << (note & 63));
+            break;
+         case ShortMessage.NOTE_OFF:
+            notes[word] &= ~(1l << (note & 63));
+            break;
+         case ShortMessage.CONTROL_CHANGE:
+            if (note != 0x40)
+               break;
+            if (isPedalOn (message))
+               pedal |= 1 << channel;
+            else
+               pedal &= ~(1 << channel);
+            break;
+      }
+      return pedal;
+   }
+
+   public int size ()
+   {
+      return count;
+   }
+
+   public long getMemoryUsage ()
+   {
+      // Size of our tables, in bytes.
+      return (long) ticks.length * 16 + (long) messages.length * 4 +
+             (long) checkEvent.length * 4 + (long) checkNotes.length * 8 +
+             (long) checkPedal.length * 4 + (long) controlEvents.length * 4;
+   }
+
+   public long getTick (int index)
+   {
+      return ticks[index];
+   }
+
+   public long getMicros (int index)
+   {
+      return micros[index];
+   }
+
+   public long getLengthMicros ()
+   {
+      return (count == 0) ? 0 : micros[count - 1];
+   }
+
+   public int getMessage (int index)
+   {
+      return messages[index];
+   }
+
+   static public int getCommand (int message)
+   {
+      return message & 0xF0;
+   }
+
+   static public int getChannel (int message)
+   {
+      return message & 0x0F;
+   }
+
+   static public int getData1 (int message)
+   {
+      return (message >> 8) & 0xFF;
+   }
+
+   static public int getData2 (int message)
+   {
+      return (message >> 16) & 0xFF;
+   }
+}
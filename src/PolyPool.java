@@ -0,0 +1,346 @@
+import java.awt.Color;
+import java.awt.Graphics;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Storage for the visualizer's bouncing polygons.  Positions are kept in
+// normalized coordinates (0 .. 1 across the visualizer), so moving them
+// costs the same at any size; they're only scaled to pixels when drawn.
+//
+// Rather than one object (and four arrays) per polygon, every polygon lives
+// in a numbered slot of a few flat arrays.  Freed slots go on a free list
+// and are reused, so notes coming and going don't create any garbage.  The
+// pool only allocates when it has to grow, which doubles its size.
+//
+// Large sets of polygons can be moved on several threads at once.  Every
+// polygon moves independently of the others, so the result is the same
+// however the work is split.
+class PolyPool
+{
+   // Polygons have between MIN_POINTS and MAX_POINTS corners.
+   static public final int MIN_POINTS = 3;
+   static public final int MAX_POINTS = 8;
+
+   // Number of slots to start with.
+   static public final int DEFAULT_CAPACITY = 128;
+
+   // Fewest polygons worth splitting across threads, and the most that
+   // one piece of the split moves by itself.
+   static public final int PARALLEL_THRESHOLD = 1024;
+   static public final int PIECE_SIZE         = 256;
+
+   // Per-slot data.  Points are stored MAX_POINTS to a slot, so point 'i'
+   // of slot 's' is at index (s * MAX_POINTS + i).  Each point's position
+   // before its last move is kept so drawing can blend between the two.
+   private int     capacity;
+   private int[]   points;
+   private float[] xCoord, yCoord;
+   private float[] xPrev, yPrev;
+   private float[] xVel, yVel;
+
+   // Per-slot color.  Slots with a hue (0 .. PolygonVisualizer.HUES - 1)
+   // are drawn from PolygonVisualizer's shade palette; others (hue -1)
+   // have a packed 'rgb' color chosen by their owner.  'value' is the HSB
+   // brightness of the full color, which scales movement.
+   private int[]   hue;
+   private int[]   rgb;
+   private float[] value;
+   private float[] brightness;
+
+   // Free slots, used as a stack.
+   private int[] free;
+   private int   freeCount;
+
+   // Threads moveAll() may use, including the caller, and the pool they
+   // come from (started when first needed).  'mover' splits the job, and
+   // is kept from one call to the next so moving doesn't allocate.
+   private int          parallelism =
+      Runtime.getRuntime().availableProcessors ();
+   private ForkJoinPool workers = null;
+   private Mover        mover   = null;
+
+   // Scratch space for draw().
+   private int[] xPoints = new int[MAX_POINTS + 1];
+   private int[] yPoints = new int[MAX_POINTS + 1];
+
+   public PolyPool ()
+   {
+      this (DEFAULT_CAPACITY);
+   }
+
+   public PolyPool (int capacity)
+   {
+      this.capacity = 0;
+      grow (Math.max (1, capacity));
+   }
+
+   private void grow (int newCapacity)
+   {
+      // Resize every array, then put the new slots on the free list.
+      points     = Arrays.copyOf (points == null ? new int[0] : points,
+                                  newCapacity);
+      xCoord     = resize (xCoord, newCapacity * MAX_POINTS);
+      yCoord     = resize (yCoord, newCapacity * MAX_POINTS);
+      xPrev      = resize (xPrev,  newCapacity * MAX_POINTS);
+      yPrev      = resize (yPrev,  newCapacity * MAX_POINTS);
+      xVel       = resize (xVel,   newCapacity * MAX_POINTS);
+      yVel       = resize (yVel,   newCapacity * MAX_POINTS);
+      value      = resize (value,      newCapacity);
+      brightness = resize (brightness, newCapacity);
+      hue        = Arrays.copyOf (hue == null ? new int[0] : hue,
+                                  newCapacity);
+      rgb        = Arrays.copyOf (rgb == null ? new int[0] : rgb,
+                                  newCapacity);
+      free       = Arrays.copyOf (free == null ? new int[0] : free,
+                                  newCapacity);
+
+      // Push new slots in reverse so the lowest is handed out first.
+      for (int s = newCapacity - 1; s >= capacity; s--)
+         free[freeCount++] = s;
+      capacity = newCapacity;
+   }
+
+   static private float[] resize (float[] array, int length)
+   {
+      return Arrays.copyOf (array == null ? new float[0] : array, length);
+   }
+
+   public int allocate (Random random)
+   {
+      // Take a free slot, growing if there are none.
+      if (freeCount == 0)
+         grow (capacity * 2);
+      int s = free[--freeCount];
+
+      // Scatter a random number of points around the visualizer.
+      points[s] = random.nextInt (MAX_POINTS - MIN_POINTS + 1) + MIN_POINTS;
+      for (int i = s * MAX_POINTS, end = i + points[s]; i < end; i++) {
+         xCoord[i] = xPrev[i] = random.nextFloat ();
+         yCoord[i] = yPrev[i] = random.nextFloat ();
+         xVel[i]   = (random.nextFloat () - 0.5f) / 20f;
+         yVel[i]   = (random.nextFloat () - 0.5f) / 20f;
+      }
+
+      // Start out black and fully bright.
+      setRGB (s, Color.black.getRGB ());
+      brightness[s] = 1.00f;
+      return s;
+   }
+
+   public void release (int s)
+   {
+      if (points[s] == 0)
+         return;
+      points[s] = 0;
+      free[freeCount++] = s;
+   }
+
+   public void setHue (int s, int hue)
+   {
+      this.hue[s]   = hue;
+      this.rgb[s]   = PolygonVisualizer.getShadeRGB (hue, 1.00f);
+      this.value[s] = valueOf (rgb[s]);
+   }
+
+   public void setRGB (int s, int rgb)
+   {
+      this.hue[s]   = -1;
+      this.rgb[s]   = rgb;
+      this.value[s] = valueOf (rgb);
+   }
+
+   static private float valueOf (int rgb)
+   {
+      // HSB brightness is just the largest component.
+      int max = Math.max ((rgb >> 16) & 0xFF,
+                          Math.max ((rgb >> 8) & 0xFF, rgb & 0xFF));
+      return (float) max / 255f;
+   }
+
+   public int getShadeKey (int s)
+   {
+      // Where this slot's current color is in PolygonVisualizer's palette,
+      // or -1.
+      if (hue[s] < 0)
+         return -1;
+      return PolygonVisualizer.getShadeKey (hue[s], brightness[s]);
+   }
+
+   public void setBrightness (int s, float b)
+   {
+      brightness[s] = b;
+   }
+
+   public void move (int s)
+   {
+      // Move each point based on value/brightness.
+      float speed = value[s] * brightness[s];
+      for (int i = s * MAX_POINTS, end = i + points[s]; i < end; i++) {
+         xPrev[i]   = xCoord[i];
+         yPrev[i]   = yCoord[i];
+         xCoord[i] += xVel[i] * speed;
+         yCoord[i] += yVel[i] * speed;
+
+         // X coordinate bounce.
+         if (xCoord[i] < 0f) {
+            xCoord[i] = -xCoord[i];
+            xVel[i] = -xVel[i];
+         }
+         else if (xCoord[i] >= 1f) {
+            xCoord[i] = 2f - xCoord[i];
+            xVel[i] = -xVel[i];
+         }
+
+         // Y coordinate bounce.
+         if (yCoord[i] < 0f) {
+            yCoord[i] = -yCoord[i];
+            yVel[i] = -yVel[i];
+         }
+         else if (yCoord[i] >= 1f) {
+            yCoord[i] = 2f - yCoord[i];
+            yVel[i] = -yVel[i];
+         }
+      }
+   }
+
+   public void hold (int s)
+   {
+      // Stay put: forget the last move so drawing doesn't blend across it.
+      int first = s * MAX_POINTS;
+      System.arraycopy (xCoord, first, xPrev, first, points[s]);
+      System.arraycopy (yCoord, first, yPrev, first, points[s]);
+   }
+
+   public void moveAll (int[] slots, int count)
+   {
+      // Small jobs aren't worth handing off.
+      if (parallelism < 2 || count < PARALLEL_THRESHOLD) {
+         for (int i = 0; i < count; i++)
+            move (slots[i]);
+         return;
+      }
+
+      if (workers == null) {
+         workers = new ForkJoinPool (parallelism);
+         mover   = new Mover ();
+      }
+      mover.reinitialize ();
+      mover.setRange (slots, 0, count);
+      workers.invoke (mover);
+   }
+
+   public void setParallelism (int parallelism)
+   {
+      // Shut down any workers; new ones are started when they're needed.
+      this.parallelism = Math.max (1, parallelism);
+      if (workers != null) {
+         workers.shutdown ();
+         workers = null;
+         mover   = null;
+      }
+   }
+
+   public int getParallelism ()
+   {
+      return parallelism;
+   }
+
+   public void draw (int s, Graphics graphics, float alpha,
+                     int width, int height)
+   {
+      // Draw the outline in the current color as one closed polyline.
+      int count = project (s, alpha, width, height);
+      graphics.drawPolyline (xPoints, yPoints, count);
+   }
+
+   public void draw (int s, int[] raster, int rgb, float alpha,
+                     int width, int height)
+   {
+      // The same, but drawn straight into a raster of packed RGB.
+      int count = project (s, alpha, width, height);
+      Rasterizer.drawPolyline (raster, width, height, xPoints, yPoints,
+                               count, rgb);
+   }
+
+   private int project (int s, float alpha, int width, int height)
+   {
+      // Put the outline into xPoints/yPoints as a closed polyline, 'alpha'
+      // of the way from each point's last position to its current one,
+      // scaled to 'width' x 'height' pixels.  Returns the number of points.
+      int first = s * MAX_POINTS, n = points[s];
+      for (int i = 0, j = first; i < n; i++, j++) {
+         xPoints[i] = (int) ((xPrev[j] + (xCoord[j] - xPrev[j]) * alpha) *
+                             width);
+         yPoints[i] = (int) ((yPrev[j] + (yCoord[j] - yPrev[j]) * alpha) *
+                             height);
+      }
+      xPoints[n] = xPoints[0];
+      yPoints[n] = yPoints[0];
+      return n + 1;
+   }
+
+   public int getPoints (int s)
+   {
+      return points[s];
+   }
+
+   public float getX (int s, int i)
+   {
+      return xCoord[s * MAX_POINTS + i];
+   }
+
+   public float getY (int s, int i)
+   {
+      return yCoord[s * MAX_POINTS + i];
+   }
+
+   public int getCapacity ()
+   {
+      return capacity;
+   }
+
+   public int getUsed ()
+   {
+      return capacity - freeCount;
+   }
+
+   // Moves a range of slots, splitting it in half until the pieces are
+   // small enough to move on one thread.  Each task keeps its halves for
+   // the next job, so once the tree has grown to fit, nothing is
+   // allocated.
+   private class Mover extends RecursiveAction
+   {
+      private int[] slots;
+      private int   from, to;
+      private Mover left = null, right = null;
+
+      public void setRange (int[] slots, int from, int to)
+      {
+         this.slots = slots;
+         this.from  = from;
+         this.to    = to;
+      }
+
+      protected void compute ()
+      {
+         if (to - from <= PIECE_SIZE) {
+            for (int i = from; i < to; i++)
+               move (slots[i]);
+            return;
+         }
+
+         if (left == null) {
+            left  = new Mover ();
+            right = new Mover ();
+         }
+         int middle = (from + to) >>> 1;
+         left.reinitialize ();
+         right.reinitialize ();
+         left.setRange (slots, from, middle);
+         right.setRange (slots, middle, to);
+         invokeAll (left, right);
+      }
+   }
+}
@@ -0,0 +1,111 @@
+import java.util.Random;
+
+// Measures how PolyPool.moveAll() scales with threads.  The same polygons
+// are moved for a number of frames on one thread, then two, and so on, and
+// the fastest of a few passes is reported for each, with its speedup over
+// one thread.  Every run starts from the same seed, so each must end with
+// exactly the polygons the single-threaded run ended with; any polygon
+// that doesn't is counted.
+class PolygonBench
+{
+   // Defaults.
+   static public final int DEFAULT_POLYGONS = 65536;
+   static public final int DEFAULT_FRAMES   = 200;
+   static public final int DEFAULT_PASSES   = 5;
+
+   // Settings.
+   private int polygons = DEFAULT_POLYGONS;
+   private int frames   = DEFAULT_FRAMES;
+   private int passes   = DEFAULT_PASSES;
+   private int threads  = Runtime.getRuntime().availableProcessors ();
+
+   public void setPolygons (int polygons)
+   {
+      this.polygons = Math.max (1, polygons);
+   }
+
+   public void setFrames (int frames)
+   {
+      this.frames = Math.max (1, frames);
+   }
+
+   public void setPasses (int passes)
+   {
+      // The fastest pass is reported, so the JIT has time to warm up.
+      this.passes = Math.max (1, passes);
+   }
+
+   public void setThreads (int threads)
+   {
+      // The most threads to try.
+      this.threads = Math.max (1, threads);
+   }
+
+   public void run ()
+   {
+      System.out.println (polygons + " polygons, " + frames + " frames, " +
+                          Runtime.getRuntime().availableProcessors () +
+                          " processors");
+      PolyPool serial = null;
+      int[]    slots  = new int[polygons];
+      long     serialTime = 0;
+      for (int t = 1; t <= threads; t++) {
+         long     time = Long.MAX_VALUE;
+         PolyPool pool = null;
+         for (int pass = 0; pass < passes; pass++) {
+            pool = makePool (slots);
+            pool.setParallelism (t);
+            long start = System.nanoTime ();
+            for (int frame = 0; frame < frames; frame++)
+               pool.moveAll (slots, polygons);
+            time = Math.min (time, System.nanoTime () - start);
+            pool.setParallelism (1);
+         }
+         if (t == 1) {
+            serial     = pool;
+            serialTime = time;
+         }
+
+         // Report.
+         System.out.println (String.format (
+            "%3d threads: %8.3f ms/frame, %5.2fx, %d polygons differ", t,
+            time / 1e6 / frames, (double) serialTime / time,
+            compare (serial, pool, slots)));
+      }
+   }
+
+   private PolyPool makePool (int[] slots)
+   {
+      // Polygons of all sorts of colors and brightness, so they move at
+      // all sorts of speeds.  Slots are handed out in order, so every pool
+      // made this way has the same polygons in the same slots.
+      Random   random = new Random (0);
+      PolyPool pool   = new PolyPool (polygons);
+      for (int i = 0; i < polygons; i++) {
+         slots[i] = pool.allocate (random);
+         pool.setRGB (slots[i], random.nextInt (0x1000000));
+         pool.setBrightness (slots[i], random.nextFloat ());
+      }
+      return pool;
+   }
+
+   static private int compare (PolyPool expected, PolyPool actual,
+                               int[] slots)
+   {
+      // Count the polygons with any point out of place, to the bit.
+      int differ = 0;
+      for (int n = 0; n < slots.length; n++) {
+         int s = slots[n];
+         for (int i = 0; i < expected.getPoints (s); i++) {
+            if (Float.floatToIntBits (expected.getX (s, i)) !=
+                Float.floatToIntBits (actual.getX (s, i)) ||
+                Float.floatToIntBits (expected.getY (s, i)) !=
+                Float.floatToIntBits (actual.getY (s, i))) {
+               differ++;
+               break;
+            }
+         }
+      }
+      return differ;
+   }
+}
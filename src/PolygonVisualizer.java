@@ -0,0 +1,437 @@
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.*;
+
+// The original visualizer engine: every note is a polygon in its own hue
+// that bounces around, fading in quickly and out slowly, over a background
+// (and a main polygon) colored by the average of every visible note.
+class PolygonVisualizer implements Visualizer
+{
+   // The simulation always advances in steps of STEP seconds, however
+   // often it's run, and catches up by at most MAX_STEPS at once.
+   public static final float STEP      = 0.016f;
+   public static final int   MAX_STEPS = 8;
+
+   // Notes map onto twelve hues, and polygons are drawn at one of SHADES
+   // brightness levels.
+   public static final int HUES   = 12;
+   public static final int SHADES = 256;
+
+   // Per-tone lookup tables: fade speed (higher tones are faster), hue and
+   // the hue's position on the color wheel.
+   private static final float[] TONE_SPEED = new float[Piano.TONE_RANGE];
+   private static final int[]   TONE_HUE   = new int[Piano.TONE_RANGE];
+   private static final float[] TONE_COS   = new float[Piano.TONE_RANGE];
+   private static final float[] TONE_SIN   = new float[Piano.TONE_RANGE];
+
+   // Every hue at every brightness, both as colors and packed ARGB.
+   private static final Color[] SHADE_COLOR = new Color[HUES * SHADES];
+   private static final int[]   SHADE_RGB   = new int[HUES * SHADES];
+
+   static {
+      for (int i = 0; i < Piano.TONE_RANGE; i++) {
+         // Odd notes are a tritone away from their neighbors.
+         int hue = i;
+         if (hue % 2 == 1)
+            hue += 6;
+         hue %= 12;
+         TONE_HUE[i]   = hue;
+         TONE_SPEED[i] = (float) Math.pow (2.00, (double) (i - 32) / 64.00);
+         TONE_COS[i]   = (float) Math.cos (hue * Math.PI * 2.0 / HUES);
+         TONE_SIN[i]   = (float) Math.sin (hue * Math.PI * 2.0 / HUES);
+      }
+      for (int hue = 0; hue < HUES; hue++) {
+         Color base = Color.getHSBColor ((float) hue / HUES, 1f, 0.4f);
+         for (int s = 0; s < SHADES; s++) {
+            float b = (float) s / (SHADES - 1);
+            int r = (int) ((float) base.getRed()   * b),
+                g = (int) ((float) base.getGreen() * b),
+                l = (int) ((float) base.getBlue()  * b);
+            int rgb = 0xFF000000 | (r << 16) | (g << 8) | l;
+            SHADE_RGB[hue * SHADES + s]   = rgb;
+            SHADE_COLOR[hue * SHADES + s] = new Color (rgb);
+         }
+      }
+   }
+
+   // Polygon tracking.
+   private float[]      polyOn  = new float[Piano.TONE_RANGE];
+   private float[]      polyDir = new float[Piano.TONE_RANGE];
+   private PolyPool     pool = new PolyPool ();
+   private int[]        polySlot = new int[Piano.TONE_RANGE];
+   private int          mainSlot;
+   private int[]        moving = new int[Piano.TONE_RANGE + 1];
+   private Random       random;
+
+   // Time step() has been given that hasn't been simulated yet.
+   private float accumulator = 0f;
+
+   // Running color wheel totals over all visible polygons: each polygon's
+   // hue as an (x, y) position, weighted by its intensity.  These are
+   // updated whenever an intensity changes, and turned into colors once
+   // per frame if they've moved.
+   private double  sumX = 0.0, sumY = 0.0, sumB = 0.0;
+   private int     visible = 0;
+   private boolean sumsChanged = false;
+
+   // Colors computed from the totals above, packed as RGB so the frame
+   // loop doesn't allocate.  The average may be read from any thread.
+   private volatile int avgRGB = Color.black.getRGB ();
+   private int backRGB = Color.black.darker().getRGB ();
+   private int mainRGB = Color.black.brighter().getRGB ();
+   private Color backColor = Color.black;
+   private Color mainColor = Color.black;
+
+   // Scratch space for sorting polygons by color.
+   private int[] drawSlots = new int[Piano.TONE_RANGE];
+   private int[] drawKeys  = new int[Piano.TONE_RANGE];
+
+   // Rasters we've been asked to draw into, wrapped as images.  We keep
+   // the last two, since displays usually alternate between a pair.
+   static private final DirectColorModel RGB_MODEL =
+      new DirectColorModel (24, 0xFF0000, 0x00FF00, 0x0000FF);
+   private int[][]         targetRasters = new int[2][];
+   private BufferedImage[] targetImages  = new BufferedImage[2];
+   private Graphics2D[]    targetGraphics = new Graphics2D[2];
+
+   // Draw with Rasterizer instead of Java2D?
+   private boolean softwareRendering = false;
+
+   public PolygonVisualizer ()
+   {
+      this (new Random().nextLong ());
+   }
+
+   public PolygonVisualizer (long seed)
+   {
+      // Polygon shapes come from 'random', so the same seed and the same
+      // notes give the same pictures.
+      random = new Random (seed);
+
+      // We always have a single, main polygon to represent all keys.
+      Arrays.fill (polySlot, -1);
+      mainSlot = pool.allocate (random);
+   }
+
+   public void step (float t)
+   {
+      // Simulate as many whole steps as we have time for, keeping the rest
+      // for next time.  If we've fallen far behind, give up on catching up.
+      accumulator = Math.min (accumulator + t, STEP * MAX_STEPS);
+      while (accumulator >= STEP) {
+         simulate ();
+         accumulator -= STEP;
+      }
+   }
+
+   private void simulate ()
+   {
+      float t = STEP;
+      int count = 0;
+
+      // Update polygon intensities.
+      for (int i = 0; i < Piano.TONE_RANGE; i++) {
+         // Skip polygons that don't exist.
+         if (polySlot[i] < 0)
+            continue;
+
+         // Modify intensity based on tone (higher patch = faster).
+         float on = polyOn[i] + polyDir[i] * t * TONE_SPEED[i];
+
+         // If we were increasing intensity, drop once we hit the peak.
+         if (polyDir[i] > 0.00f) {
+            if (on >= 1.00f) {
+               on = 1.00f;
+               polyDir[i] = -0.125f;
+            }
+         }
+         // If we were decreasing intensity, delete polygons that hit zero.
+         else if (polyDir[i] < 0.00f && on <= 0.00f) {
+            setIntensity (i, on);
+            pool.release (polySlot[i]);
+            polySlot[i] = -1;
+            continue;
+         }
+         setIntensity (i, on);
+
+         // Move polygons that are active.
+         pool.setBrightness (polySlot[i], polyOn[i]);
+         moving[count++] = polySlot[i];
+      }
+
+      // Work out this frame's colors.
+      updateColors ();
+
+      // Update the main polygon.  It only moves if there are other
+      // polygons to draw.
+      rebuildMainPoly ();
+      if (count > 0)
+         moving[count++] = mainSlot;
+      else
+         pool.hold (mainSlot);
+
+      // Move everything at once.
+      pool.moveAll (moving, count);
+   }
+
+   public void setSoftwareRendering (boolean softwareRendering)
+   {
+      this.softwareRendering = softwareRendering;
+   }
+
+   public boolean isSoftwareRendering ()
+   {
+      return softwareRendering;
+   }
+
+   public void render (int[] raster, int width, int height)
+   {
+      // Draw what's on screen part of the way into the next step.
+      float alpha = accumulator / STEP;
+      Graphics2D g = null;
+      if (!softwareRendering)
+         g = getGraphics (raster, width, height);
+
+      // Clear to our background color.
+      if (g == null)
+         Rasterizer.fill (raster, width, height, backRGB);
+      else {
+         if (backColor.getRGB () != backRGB)
+            backColor = new Color (backRGB);
+         g.setColor (backColor);
+         g.fillRect (0, 0, width, height);
+      }
+
+      // Sort visible polygons by shade (insertion sort - there are few,
+      // and they're mostly in order already) so we only change color once
+      // per shade.
+      int n = 0;
+      for (int i = 0; i < Piano.TONE_RANGE; i++) {
+         if (polyOn[i] <= 0)
+            continue;
+         int slot = polySlot[i], key = pool.getShadeKey (slot), j = n++;
+         for (; j > 0 && drawKeys[j - 1] > key; j--) {
+            drawKeys[j]  = drawKeys[j - 1];
+            drawSlots[j] = drawSlots[j - 1];
+         }
+         drawKeys[j]  = key;
+         drawSlots[j] = slot;
+      }
+
+      // Draw them.
+      for (int i = 0; i < n; i++) {
+         if (g == null) {
+            pool.draw (drawSlots[i], raster, SHADE_RGB[drawKeys[i]], alpha,
+                       width, height);
+            continue;
+         }
+         if (i == 0 || drawKeys[i] != drawKeys[i - 1])
+            g.setColor (SHADE_COLOR[drawKeys[i]]);
+         pool.draw (drawSlots[i], g, alpha, width, height);
+      }
+
+      // The main polygon always goes on top.
+      if (g == null) {
+         pool.draw (mainSlot, raster, mainRGB, alpha, width, height);
+         return;
+      }
+      if (mainColor.getRGB () != mainRGB)
+         mainColor = new Color (mainRGB);
+      g.setColor (mainColor);
+      pool.draw (mainSlot, g, alpha, width, height);
+   }
+
+   private Graphics2D getGraphics (int[] raster, int width, int height)
+   {
+      // Have we drawn into this raster (at this size) recently?
+      for (int i = 0; i < 2; i++)
+         if (targetRasters[i] == raster &&
+             targetImages[i].getWidth () == width &&
+             targetImages[i].getHeight () == height)
+            return targetGraphics[i];
+
+      // No - wrap it in an image, replacing the older of our two.
+      if (targetGraphics[1] != null)
+         targetGraphics[1].dispose ();
+      targetRasters[1]  = targetRasters[0];
+      targetImages[1]   = targetImages[0];
+      targetGraphics[1] = targetGraphics[0];
+      WritableRaster wr = Raster.createPackedRaster (
+         new DataBufferInt (raster, width * height), width, height, width,
+         RGB_MODEL.getMasks (), null);
+      targetRasters[0]  = raster;
+      targetImages[0]   = new BufferedImage (RGB_MODEL, wr, false, null);
+      targetGraphics[0] = targetImages[0].createGraphics ();
+      return targetGraphics[0];
+   }
+
+   private void setIntensity (int i, float on)
+   {
+      // Only visible (positive) intensities count towards our totals.
+      float was = Math.max (polyOn[i], 0f), now = Math.max (on, 0f);
+      polyOn[i] = on;
+      if (was == now)
+         return;
+      sumsChanged = true;
+      if (was == 0f)
+         visible++;
+      else if (now == 0f)
+         visible--;
+
+      // Move our totals.  If nothing's visible, reset them outright so
+      // rounding errors can't build up.
+      if (visible == 0)
+         sumX = sumY = sumB = 0.0;
+      else {
+         sumX += TONE_COS[i] * (now - was);
+         sumY += TONE_SIN[i] * (now - was);
+         sumB += (now - was);
+      }
+   }
+
+   private void updateColors ()
+   {
+      // Only build new colors when the average has actually changed.
+      if (!sumsChanged)
+         return;
+      sumsChanged = false;
+      int rgb = averageRGB (sumX, sumY, sumB);
+      if (rgb == avgRGB)
+         return;
+      avgRGB  = rgb;
+      backRGB = darker (rgb);
+      mainRGB = brighter (rgb);
+   }
+
+   static private int darker (int rgb)
+   {
+      // Same as Color.darker().
+      int r = (rgb >> 16) & 0xFF, g = (rgb >> 8) & 0xFF, b = rgb & 0xFF;
+      return 0xFF000000 | ((int) (r * 0.7) << 16) | ((int) (g * 0.7) << 8) |
+             (int) (b * 0.7);
+   }
+
+   static private int brighter (int rgb)
+   {
+      // Same as Color.brighter(): black becomes dark gray, and components
+      // are kept off zero so they can grow.
+      int r = (rgb >> 16) & 0xFF, g = (rgb >> 8) & 0xFF, b = rgb & 0xFF;
+      int i = (int) (1.0 / (1.0 - 0.7));
+      if (r == 0 && g == 0 && b == 0)
+         return 0xFF000000 | (i << 16) | (i << 8) | i;
+      if (r > 0 && r < i) r = i;
+      if (g > 0 && g < i) g = i;
+      if (b > 0 && b < i) b = i;
+      return 0xFF000000 | (Math.min ((int) (r / 0.7), 255) << 16) |
+             (Math.min ((int) (g / 0.7), 255) << 8) |
+             Math.min ((int) (b / 0.7), 255);
+   }
+
+   public boolean isIdle ()
+   {
+      // We're idle once every polygon has faded out.
+      for (int i = 0; i < Piano.TONE_RANGE; i++)
+         if (polySlot[i] >= 0)
+            return false;
+      return true;
+   }
+
+   public int getColor ()
+   {
+      return avgRGB & 0xFFFFFF;
+   }
+
+   public float noteToHue (int note)
+   {
+      // Translate note to a hue clamped from (0 .. < 1)
+      return (float) TONE_HUE[note] / HUES;
+   }
+
+   static public Color getShade (int hue, float brightness)
+   {
+      return SHADE_COLOR[getShadeKey (hue, brightness)];
+   }
+
+   static public int getShadeKey (int hue, float brightness)
+   {
+      return hue * SHADES + shadeIndex (brightness);
+   }
+
+   static public int getShadeRGB (int hue, float brightness)
+   {
+      return SHADE_RGB[hue * SHADES + shadeIndex (brightness)];
+   }
+
+   static private int shadeIndex (float brightness)
+   {
+      // Round brightness (0 .. 1) to the nearest shade.
+      int s = (int) (brightness * (SHADES - 1) + 0.5f);
+      return Math.max (0, Math.min (SHADES - 1, s));
+   }
+
+   public void noteOn (int note)
+   {
+      // Create a new polygon with the appropriate hue, replacing any that's
+      // still fading.
+      if (polySlot[note] >= 0)
+         pool.release (polySlot[note]);
+      polySlot[note] = pool.allocate (random);
+      pool.setHue (polySlot[note], TONE_HUE[note]);
+
+      // Fade in rapidly from (at least) 0% opacity.
+      polyDir[note] = 15.00f;
+      if (polyOn[note] < 0.00f)
+         setIntensity (note, 0.00f);
+   }
+
+   public void noteOff (int note)
+   {
+      // Gradually fade out.
+      polyDir[note] = -2.00f;
+   }
+
+   public void allNotesOff ()
+   {
+      for (int i = 0; i < Piano.TONE_RANGE; i++)
+         noteOff (i);
+   }
+
+   private void rebuildMainPoly ()
+   {
+      // Use a color brighter than our background and other polygons.
+      pool.setRGB (mainSlot, mainRGB);
+   }
+
+   static private int averageRGB (double sumX, double sumY, double sumB)
+   {
+      float t, r, b = (float) sumB;
+      float x = (float) sumX, y = (float) sumY;
+      if (b <= 0.00)
+         return Color.black.getRGB ();
+
+      // Divide (x, y) by magnitude.
+      x /= b;
+      y /= b;
+
+      // t(theta) = hue,
+      // r        = radius.
+      t = (float) (Math.atan2 (y, x) / Math.PI / 2f);
+      if (t > -0.01f && t < 0.01f)
+         t = 0;
+      r = (float) (Math.sqrt (x * x + y * y));
+
+      // If the intensity is greater than 1, scale up to 1.00 logarithmically.
+      if (b > 1f)
+         b = (((b * 2f) - 1f) / (b * 2f));
+      else
+         b /= 2f;
+
+      // We have our HSB value - return an RGB color.
+      return Color.HSBtoRGB (t, r, (float) b);
+   }
+}
@@ -0,0 +1,71 @@
+import java.util.Arrays;
+
+// Draws straight into rasters of packed RGB pixels (0xRRGGBB, one row
+// after another), without going through Java2D.  Only what the visualizer
+// needs: filling the whole raster and drawing one-pixel-wide lines.
+//
+// Lines are drawn with Bresenham's algorithm, stepping along the longer
+// axis one pixel at a time.  Ties are broken the way Java2D's own software
+// loops break them, so lines land on the same pixels Graphics.drawLine()
+// would give.  "ColorKeyboard -check raster" compares the two, pixel for
+// pixel.
+class Rasterizer
+{
+   static public void fill (int[] raster, int width, int height, int rgb)
+   {
+      Arrays.fill (raster, 0, width * height, rgb & 0xFFFFFF);
+   }
+
+   static public void drawPolyline (int[] raster, int width, int height,
+                                    int[] xPoints, int[] yPoints, int count,
+                                    int rgb)
+   {
+      // Each point after the first draws a line from the one before it.
+      for (int i = 1; i < count; i++)
+         drawLine (raster, width, height, xPoints[i - 1], yPoints[i - 1],
+                   xPoints[i], yPoints[i], rgb);
+   }
+
+   static public void drawLine (int[] raster, int width, int height,
+                                int x0, int y0, int x1, int y1, int rgb)
+   {
+      // Keep both ends on the raster.  The visualizer's lines are always
+      // inside it already, give or take rounding at the far edges.
+      x0 = Math.max (0, Math.min (width  - 1, x0));
+      y0 = Math.max (0, Math.min (height - 1, y0));
+      x1 = Math.max (0, Math.min (width  - 1, x1));
+      y1 = Math.max (0, Math.min (height - 1, y1));
+
+      // Walk along the longer axis, stepping along the shorter one whenever
+      // the error term reaches zero.  Both ends are drawn.
+      rgb &= 0xFFFFFF;
+      int dx = Math.abs (x1 - x0), dy = Math.abs (y1 - y0);
+      int xStep = (x0 < x1) ? 1 : -1;
+      int yStep = (y0 < y1) ? width : -width;
+      int pixel = y0 * width + x0;
+      if (dx >= dy) {
+         int error = -dx;
+         for (int i = 0; i <= dx; i++) {
+            raster[pixel] = rgb;
+            pixel += xStep;
+            error += 2 * dy;
+            if (error >= 0) {
+               pixel += yStep;
+               error -= 2 * dx;
+            }
+         }
+      }
+      else {
+         int error = -dy;
+         for (int i = 0; i <= dy; i++) {
+            raster[pixel] = rgb;
+            pixel += yStep;
+            error += 2 * dx;
+            if (error >= 0) {
+               pixel += xStep;
+               error -= 2 * dy;
+            }
+         }
+      }
+   }
+}
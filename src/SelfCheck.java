@@ -0,0 +1,966 @@
+import javax.sound.midi.*;
+import javax.sound.sampled.*;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.LockSupport;
+
+// Checks that parts of the program do what they claim, without a display or
+// a sound card.  Each check works its part hard, prints what it found and
+// passes or fails:
+//
+//    queue       NoteQueue loses and reorders nothing under contention.
+//    allocation  PolyPool and PolygonVisualizer allocate nothing per frame.
+//    raster      Rasterizer lands on exactly the pixels Java2D does.
+//    metronome   Metronome clicks are stamped and heard on time.
+//    seek        PlaybackEngine lands exactly on the tick it's sent to, and
+//                plays on from there even if it had reached the end.
+//    input       MidiInput plays every note it's sent, well within a frame.
+//    cache       SequenceCache replays files from memory until they change,
+//                and stays within its memory ceiling.
+//    frames      FrameScheduler keeps time, skips rather than bunches frames
+//                after a stall, and parks while idle.
+class SelfCheck
+{
+   static public boolean run (String name, Options options) throws Exception
+   {
+      // Every check reads its options before doing anything, so a typo
+      // doesn't waste a long run.
+      boolean passed;
+      if (name.equals ("queue"))
+         passed = checkQueue (options);
+      else if (name.equals ("allocation"))
+         passed = checkAllocation (options);
+      else if (name.equals ("raster"))
+         passed = checkRaster (options);
+      else if (name.equals ("metronome"))
+         passed = checkMetronome (options);
+      else if (name.equals ("seek"))
+         passed = checkSeek (options);
+      else if (name.equals ("input"))
+         passed = checkInput (options);
+      else if (name.equals ("cache"))
+         passed = checkCache (options);
+      else if (name.equals ("frames"))
+         passed = checkFrames (options);
+      else
+         throw new IllegalArgumentException (name);
+      System.out.println (passed ? "   passed" : "   FAILED");
+      return passed;
+   }
+
+   // queue: several producer threads post numbered events into a small queue
+   // as fast as they can while one consumer drains it, so producers are
+   // constantly racing each other for slots and waiting for the queue to
+   // empty.  Every event must come out exactly once, and each producer's
+   // events in the order it posted them.  If nothing comes out for
+   // STALL_MILLIS, the queue has lost track of its slots.
+   //
+   // Events are (producer << PRODUCER_SHIFT | number), so there can be up
+   // to 128 producers of 16M events each.  The top bit is never set, so an
+   // event can't be mistaken for EMPTY.
+   static public final long STALL_MILLIS   = 5000;
+   static private final int PRODUCER_SHIFT = 24;
+   static private final int NUMBER_MASK    = (1 << PRODUCER_SHIFT) - 1;
+
+   static private boolean checkQueue (Options options)
+      throws InterruptedException
+   {
+      final int producers = Math.max (1, Math.min (128,
+         options.getInt ("producers", 8)));
+      final int events = Math.max (1, Math.min (NUMBER_MASK + 1,
+         options.getInt ("events", 200000)));
+      int capacity = Math.max (2, options.getInt ("capacity", 64));
+      options.finish ();
+
+      final NoteQueue queue = new NoteQueue (capacity);
+      final CountDownLatch ready = new CountDownLatch (1);
+
+      // Start our producers, all waiting to go at once.
+      Thread[] threads = new Thread[producers];
+      for (int p = 0; p < producers; p++) {
+         final int producer = p << PRODUCER_SHIFT;
+         threads[p] = new Thread ("SelfCheck " + p) {
+            public void run ()
+            {
+               try {
+                  ready.await ();
+               }
+               catch (InterruptedException e) {
+                  return;
+               }
+               for (int n = 0; n < events; n++)
+                  queue.post (producer | n);
+            }
+         };
+         threads[p].setDaemon (true);
+         threads[p].start ();
+      }
+
+      // Drain until everything's in, checking each event as it comes.
+      int[]  expected = new int[producers];
+      long   total    = (long) producers * events;
+      long   received = 0, misordered = 0;
+      long   start    = System.nanoTime ();
+      long   progress = start;
+      boolean stalled = false;
+      ready.countDown ();
+      while (received < total) {
+         int event = queue.poll ();
+         if (event == NoteQueue.EMPTY) {
+            // Once every producer is done, an empty queue means we're
+            // missing events.
+            if (allDone (threads) && queue.isEmpty ())
+               break;
+            if (System.nanoTime () - progress > STALL_MILLIS * 1000000l) {
+               stalled = true;
+               break;
+            }
+            Thread.yield ();
+            continue;
+         }
+         progress = System.nanoTime ();
+         received++;
+         int producer = event >>> PRODUCER_SHIFT;
+         int number   = event & NUMBER_MASK;
+         if (producer >= producers || number != expected[producer])
+            misordered++;
+         if (producer < producers)
+            expected[producer] = number + 1;
+      }
+      long elapsed = System.nanoTime () - start;
+      long lost    = total - received;
+
+      // Stalled producers may never finish; they're daemons, so leave them.
+      if (!stalled)
+         for (int p = 0; p < producers; p++)
+            threads[p].join ();
+
+      // Report.
+      System.out.println ("NoteQueue: " + producers + " producers x " +
+                          events + " events through " + capacity +
+                          " slots in " + elapsed / 1000000 + "ms");
+      System.out.println ("   received:   " + received + " of " + total);
+      System.out.println ("   lost:       " + lost);
+      System.out.println ("   misordered: " + misordered);
+      if (stalled)
+         System.out.println ("   stalled after " + STALL_MILLIS +
+                             "ms without an event");
+      return (lost == 0 && misordered == 0 && !stalled && queue.isEmpty ());
+   }
+
+   static private boolean allDone (Thread[] threads)
+   {
+      for (int i = 0; i < threads.length; i++)
+         if (threads[i].isAlive ())
+            return false;
+      return true;
+   }
+
+   // allocation: a PolyPool is grown to hold thousands of polygons at once,
+   // then every one of them is released, allocated again and moved, over
+   // and over.  Then a software-drawn PolygonVisualizer is played a stream
+   // of fast, overlapping notes for many frames.  Once the pool has grown
+   // to fit, neither should allocate a single byte.  Allocation is counted
+   // with HotSpot's per-thread counter, so other JVMs can't run this.
+   static private final int WARMUP_FRAMES = 2000;
+   static private final int CHECK_WIDTH   = 320;
+   static private final int CHECK_HEIGHT  = 180;
+   static private final int CHECK_FPS     = 60;
+
+   static private boolean checkAllocation (Options options)
+   {
+      int polygons = Math.max (1, options.getInt ("polygons", 5000));
+      int rounds   = Math.max (1, options.getInt ("rounds", 200));
+      int frames   = Math.max (1, options.getInt ("frames", 20000));
+      options.finish ();
+
+      // Reading the counter may itself allocate, so find out how much.
+      // Reflection only settles down after it's been called a few times.
+      for (int i = 0; i < 100; i++)
+         VisualizerBench.getAllocatedBytes ();
+      long overhead = VisualizerBench.getAllocatedBytes ();
+      overhead = VisualizerBench.getAllocatedBytes () - overhead;
+      if (overhead < 0) {
+         System.out.println ("Allocation counts are unavailable");
+         return false;
+      }
+
+      // Everything is run twice, and only the second time counts.  The
+      // first time round, the JIT compiling our loops allocates a few
+      // hundred bytes on this thread.
+      long poolBytes = 0, visualBytes = 0;
+      for (int pass = 0; pass < 2; pass++) {
+         poolBytes   = churnPool (polygons, rounds)  - overhead;
+         visualBytes = churnVisualizer (frames)      - overhead;
+      }
+
+      // Report.
+      System.out.println ("PolyPool: " + polygons + " polygons x " +
+                          rounds + " rounds: " + poolBytes +
+                          " bytes allocated");
+      System.out.println ("PolygonVisualizer: " + frames + " frames: " +
+                          visualBytes + " bytes allocated");
+      return (poolBytes <= 0 && visualBytes <= 0);
+   }
+
+   static private long churnPool (int polygons, int rounds)
+   {
+      // Fill the pool, and move everything once so it's all been run.
+      // Moves are kept on this thread: when a split move has to wait for
+      // its workers, ForkJoinPool allocates a little to wait with.
+      Random   random = new Random (0);
+      PolyPool pool   = new PolyPool ();
+      pool.setParallelism (1);
+      int[]    slots  = new int[polygons];
+      for (int i = 0; i < polygons; i++)
+         slots[i] = pool.allocate (random);
+      pool.moveAll (slots, polygons);
+
+      // Now churn through every slot, again and again.
+      long start = VisualizerBench.getAllocatedBytes ();
+      for (int round = 0; round < rounds; round++) {
+         for (int i = 0; i < polygons; i++)
+            pool.release (slots[i]);
+         for (int i = 0; i < polygons; i++) {
+            slots[i] = pool.allocate (random);
+            pool.setBrightness (slots[i], random.nextFloat ());
+         }
+         pool.moveAll (slots, polygons);
+      }
+      return VisualizerBench.getAllocatedBytes () - start;
+   }
+
+   static private long churnVisualizer (int frames)
+   {
+      PolygonVisualizer visualizer = new PolygonVisualizer (0);
+      visualizer.setSoftwareRendering (true);
+      int[]  raster = new int[CHECK_WIDTH * CHECK_HEIGHT];
+      Random random = new Random (0);
+
+      // Warm up first, so every key has had a polygon and the pool has
+      // grown as far as it will.
+      long start = 0;
+      for (int frame = -WARMUP_FRAMES; frame < frames; frame++) {
+         if (frame == 0)
+            start = VisualizerBench.getAllocatedBytes ();
+
+         // A few notes start and a few stop every frame, like a fast
+         // trill on both hands.
+         for (int i = 0; i < 4; i++) {
+            visualizer.noteOn (21 + random.nextInt (88));
+            visualizer.noteOff (21 + random.nextInt (88));
+         }
+         visualizer.step (1f / CHECK_FPS);
+         visualizer.render (raster, CHECK_WIDTH, CHECK_HEIGHT);
+         visualizer.getColor ();
+      }
+      return VisualizerBench.getAllocatedBytes () - start;
+   }
+
+   // raster: random lines, long and short, are drawn both with
+   // Rasterizer.drawLine() and with Graphics.drawLine(); then a
+   // PolygonVisualizer is played random notes and every frame is drawn
+   // both ways.  Any pixel that differs fails the check.
+   static private boolean checkRaster (Options options)
+   {
+      int   lines  = Math.max (0, options.getInt ("lines", 20000));
+      int   frames = Math.max (0, options.getInt ("frames", 3000));
+      int[] size   = options.getSize ("size", 500, 200);
+      long  seed   = options.getLong ("seed", 0);
+      options.finish ();
+      int width  = Math.max (1, size[0]);
+      int height = Math.max (1, size[1]);
+
+      long lineErrors  = drawLines (lines, width, height, seed);
+      long frameErrors = drawFrames (frames, width, height, seed);
+
+      // Report.
+      System.out.println ("Rasterizer: " + lines + " lines at " + width +
+                          "x" + height + ": " + lineErrors +
+                          " pixels differ");
+      System.out.println ("PolygonVisualizer: " + frames + " frames at " +
+                          width + "x" + height + ": " + frameErrors +
+                          " pixels differ");
+      return (lineErrors == 0 && frameErrors == 0);
+   }
+
+   static private long drawLines (int lines, int width, int height,
+                                  long seed)
+   {
+      // Java2D draws into an image whose pixels we can see.
+      BufferedImage image = new BufferedImage (width, height,
+                                               BufferedImage.TYPE_INT_RGB);
+      int[] expected = ((DataBufferInt) image.getRaster ()
+                        .getDataBuffer ()).getData ();
+      int[] actual = new int[width * height];
+      Graphics2D g = image.createGraphics ();
+      g.setColor (Color.white);
+      Random random = new Random (seed);
+
+      // Draw each line both ways, compare the box around it, and clear
+      // the box for the next line.  Half the lines are short, since
+      // polygon edges often are, and those are where rounding shows.
+      long errors = 0;
+      for (int i = 0; i < lines; i++) {
+         int x0 = random.nextInt (width), y0 = random.nextInt (height);
+         int x1, y1;
+         if (random.nextBoolean ()) {
+            x1 = random.nextInt (width);
+            y1 = random.nextInt (height);
+         }
+         else {
+            x1 = Math.max (0, Math.min (width  - 1,
+                                        x0 + random.nextInt (17) - 8));
+            y1 = Math.max (0, Math.min (height - 1,
+                                        y0 + random.nextInt (17) - 8));
+         }
+         g.drawLine (x0, y0, x1, y1);
+         Rasterizer.drawLine (actual, width, height, x0, y0, x1, y1,
+                              0xFFFFFF);
+
+         int left   = Math.max (0, Math.min (x0, x1) - 1);
+         int right  = Math.min (width  - 1, Math.max (x0, x1) + 1);
+         int top    = Math.max (0, Math.min (y0, y1) - 1);
+         int bottom = Math.min (height - 1, Math.max (y0, y1) + 1);
+         for (int y = top; y <= bottom; y++) {
+            for (int p = y * width + left, end = y * width + right;
+                 p <= end; p++) {
+               if (actual[p] != (expected[p] & 0xFFFFFF))
+                  errors++;
+               actual[p] = expected[p] = 0;
+            }
+         }
+      }
+
+      // Anything drawn outside its box is still there.
+      errors += compare (expected, actual);
+      g.dispose ();
+      return errors;
+   }
+
+   static private long drawFrames (int frames, int width, int height,
+                                   long seed)
+   {
+      // Two visualizers with the same seed and the same notes draw the
+      // same pictures, one with Java2D and one with Rasterizer.
+      PolygonVisualizer java2d   = new PolygonVisualizer (seed);
+      PolygonVisualizer software = new PolygonVisualizer (seed);
+      software.setSoftwareRendering (true);
+      int[] expected = new int[width * height];
+      int[] actual   = new int[width * height];
+      Random random = new Random (seed);
+
+      long errors = 0;
+      for (int frame = 0; frame < frames; frame++) {
+         // Now and then, a note starts or stops.
+         if (random.nextInt (4) == 0) {
+            int note = 21 + random.nextInt (88);
+            if (random.nextBoolean ()) {
+               java2d.noteOn (note);
+               software.noteOn (note);
+            }
+            else {
+               java2d.noteOff (note);
+               software.noteOff (note);
+            }
+         }
+         java2d.step (1f / 60);
+         software.step (1f / 60);
+         java2d.render (expected, width, height);
+         software.render (actual, width, height);
+         errors += compare (expected, actual);
+      }
+      return errors;
+   }
+
+   static private long compare (int[] expected, int[] actual)
+   {
+      long errors = 0;
+      for (int p = 0; p < expected.length; p++)
+         if ((actual[p] & 0xFFFFFF) != (expected[p] & 0xFFFFFF))
+            errors++;
+      return errors;
+   }
+
+   // metronome: a Metronome is driven the way its timer drives it, sending
+   // clicks ahead every WAKE_PERIOD, into the software synthesizer rendering
+   // to a stream, for ten minutes of audio.  Every click's timestamp is
+   // compared with its ideal time, worked out from the tempo alone, and the
+   // clicks are found in the rendered audio to see that they sound when they
+   // were stamped.
+   //
+   // The synthesizer takes a moment to start a sound, so clicks are heard
+   // a fixed time after their timestamps; what matters is that the delay
+   // never changes.  Louder clicks rise faster, so the delay is measured
+   // separately for each velocity, and the first bar is left out, since
+   // its clicks start from silence instead of over the last one's tail.
+   // Clicks closer together than MIN_AUDIO_PERIOD ring into each other and
+   // can't be told apart, so only their timestamps are checked.
+   static public final long MIN_AUDIO_PERIOD = 100000l;
+
+   // The metronome's sound, as Metronome uses by default, accenting the
+   // first beat of each bar.
+   static private final int   CLICK_CHANNEL = 9;
+   static private final int   CLICK_NOTE    = 60;
+   static private final int[] ACCENTS       = { 127, 100, 100, 100 };
+
+   // Timestamps are whole microseconds, so half of one is the most they
+   // can be out.  Heard clicks may be a sample out either way.
+   static public final double MAX_STAMP_ERROR = 0.5;
+
+   // A click starts when a sample gets this loud after at least
+   // QUIET_SAMPLES (or half a click period) of quieter ones.
+   static private final int ONSET_LEVEL   = 1000;
+   static private final int QUIET_SAMPLES = 2000;
+
+   static private boolean checkMetronome (Options options)
+      throws MidiUnavailableException, java.io.IOException
+   {
+      int bpm = Math.max (1, Math.min (600, options.getInt ("bpm", 120)));
+      int subdivisions = Math.max (1, Math.min (16,
+         options.getInt ("subdivisions", 1)));
+      int minutes = Math.max (1, options.getInt ("minutes", 10));
+      options.finish ();
+
+      // Render through the software synthesizer's streaming mode.
+      AudioFormat format = OfflineRenderer.AUDIO_FORMAT;
+      Synthesizer synth  = MidiSystem.getSynthesizer ();
+      AudioInputStream audio = OfflineRenderer.openStream (synth);
+      if (audio == null)
+         return false;
+      double period = 60000000.0 / bpm / subdivisions;
+      StampReceiver receiver = new StampReceiver (synth.getReceiver (),
+                                                  period);
+
+      // Click from one lookahead in until the end, and render a little
+      // longer so the last clicks can be heard.
+      Metronome metronome = new Metronome (CLICK_CHANNEL, CLICK_NOTE);
+      metronome.setAccents (ACCENTS);
+      metronome.setSubdivisions (subdivisions);
+      metronome.schedule (bpm, Metronome.LOOKAHEAD);
+      long length = minutes * 60000000l;
+      long clicks = (long) Math.ceil ((length - Metronome.LOOKAHEAD) /
+                                      period);
+
+      // Wake up every WAKE_PERIOD of audio, send what the timer would
+      // send, then render until the next wake up.
+      float rate       = format.getSampleRate ();
+      int   frameSize  = format.getFrameSize ();
+      int   chunk      = (int) (rate * Metronome.WAKE_PERIOD / 1000);
+      byte[] buffer    = new byte[chunk * frameSize];
+      long  samples    = 0;
+      long  total      = (long) (rate * (length + Metronome.LOOKAHEAD) /
+                                     1000000);
+      long  firstBar   = ACCENTS.length * subdivisions;
+      long  quiet      = Math.min (QUIET_SAMPLES,
+                                   (long) (period * rate / 2000000));
+      long  quietRun   = quiet;
+      long  heard      = 0, stray = 0;
+      double maxJitter = 0;
+      double[] offset  = new double[128];
+      Arrays.fill (offset, Double.NaN);
+      while (samples < total) {
+         long position = (long) (samples * 1000000.0 / rate);
+         receiver.setPosition (position);
+         metronome.sendClicks (receiver,
+            Math.min (length, position + Metronome.LOOKAHEAD), true);
+         int frames = (int) Math.min (chunk, total - samples);
+         OfflineRenderer.readFully (audio, buffer, frames * frameSize);
+
+         // Look for the start of each click in the left channel.
+         for (int i = 0; i < frames; i++) {
+            int p = i * frameSize;
+            int level = Math.abs ((short) ((buffer[p] & 0xFF) |
+                                           (buffer[p + 1] << 8)));
+            if (level < ONSET_LEVEL) {
+               quietRun++;
+               continue;
+            }
+            if (quietRun >= quiet) {
+               // Clicks should keep the same delay after their
+               // timestamps.  Anything else is a stray.
+               int    velocity = metronome.getVelocity (heard);
+               double delay = (samples + i) * 1000000.0 / rate -
+                              (Metronome.LOOKAHEAD + heard * period);
+               if (heard < firstBar)
+                  heard++;
+               else if (Double.isNaN (offset[velocity])) {
+                  offset[velocity] = delay;
+                  heard++;
+               }
+               else if (Math.abs (delay - offset[velocity]) < period / 2) {
+                  maxJitter = Math.max (maxJitter,
+                                        Math.abs (delay - offset[velocity]));
+                  heard++;
+               }
+               else
+                  stray++;
+            }
+            quietRun = 0;
+         }
+         samples += frames;
+      }
+      synth.close ();
+
+      // Report.
+      boolean checkAudio = (period >= MIN_AUDIO_PERIOD);
+      double  sample     = 1000000.0 / rate;
+      System.out.println ("Metronome: " + bpm + "bpm x" + subdivisions +
+                          " for " + minutes + " minutes, " + clicks +
+                          " clicks");
+      System.out.println ("   stamped:  " + receiver.clicks + " clicks, " +
+                          receiver.late + " late");
+      System.out.println ("   timestamp error: " +
+                          round (receiver.maxError) + "us at most");
+      if (checkAudio) {
+         System.out.println ("   heard:    " + heard + " clicks, " + stray +
+                             " stray");
+         System.out.println ("   heard " + round (offset[127] / 1000) +
+                             "ms after their timestamps, give or take " +
+                             round (maxJitter) + "us");
+      }
+      else
+         System.out.println ("   heard:    too fast to tell apart");
+      return (receiver.clicks == clicks && receiver.late == 0 &&
+              receiver.maxError <= MAX_STAMP_ERROR &&
+              (!checkAudio || (heard == clicks && stray == 0 &&
+                               maxJitter <= sample)));
+   }
+
+   static private double round (double value)
+   {
+      return Math.round (value * 10) / 10.0;
+   }
+
+   // Passes messages on to the synthesizer, checking the timestamp of
+   // every click as it goes past.
+   static private class StampReceiver implements Receiver
+   {
+      private Receiver receiver;
+      private double   period;
+      private long     position = 0;
+      public  long     clicks   = 0;
+      public  long     late     = 0;
+      public  double   maxError = 0;
+
+      public StampReceiver (Receiver receiver, double period)
+      {
+         this.receiver = receiver;
+         this.period   = period;
+      }
+
+      public void setPosition (long position)
+      {
+         // Where the synthesizer has got to, in microseconds.
+         this.position = position;
+      }
+
+      public void send (MidiMessage message, long timestamp)
+      {
+         ShortMessage sm = (ShortMessage) message;
+         if (sm.getCommand () == ShortMessage.NOTE_ON) {
+            double ideal = Metronome.LOOKAHEAD + clicks * period;
+            maxError = Math.max (maxError, Math.abs (timestamp - ideal));
+            if (timestamp < position)
+               late++;
+            clicks++;
+         }
+         receiver.send (message, timestamp);
+      }
+
+      public void close ()
+      {
+      }
+   }
+
+   // seek: a file of random notes, with a few tempo changes, is played to
+   // the end and then seeked to random ticks, the way Piano does it:
+   // catch the keys up with getStateAt(), then play on.  Each seek must
+   // play that tick's events and no earlier ones, and playing on from it
+   // must release every key it left held.
+   static private boolean checkSeek (Options options)
+      throws InvalidMidiDataException
+   {
+      int  notes = Math.max (1, options.getInt ("notes", 2000));
+      int  seeks = Math.max (1, options.getInt ("seeks", 2000));
+      long seed  = options.getLong ("seed", 0);
+      options.finish ();
+
+      Random random = new Random (seed);
+      PlaybackEvents events =
+         new PlaybackEvents (makeSeekSequence (notes, random));
+      long lastTick = events.getTick (events.size () - 1);
+      long length   = events.getLengthMicros ();
+
+      // Play through once, so every seek starts from the end.
+      HeldNotes held = new HeldNotes ();
+      PlaybackEngine engine = new PlaybackEngine (null, held, false);
+      engine.load (events);
+      engine.start (0);
+      long clock = length + 1;
+      engine.advance (clock);
+
+      long misplaced = 0, wrongEvents = 0, stopped = 0, stuck = 0;
+      for (int n = 0; n < seeks; n++) {
+         long tick = (long) (random.nextDouble () * (lastTick + 1));
+         clock += length + 1;
+         engine.seek (tick, clock);
+         events.getStateAt (tick, held.notes);
+         if (engine.getPosition (clock) != events.tickToMicros (tick))
+            misplaced++;
+         if (!engine.isRunning ())
+            stopped++;
+
+         // Only the events on 'tick' are due right now...
+         held.events = 0;
+         engine.advance (clock);
+         if (held.events != events.indexAfter (tick) - events.indexAt (tick))
+            wrongEvents++;
+
+         // ...and by the end, nothing's left held.
+         engine.advance (clock + length + 1);
+         if (held.count () != 0 || engine.isRunning ())
+            stuck++;
+      }
+
+      // Report.
+      System.out.println ("PlaybackEngine: " + seeks + " seeks into " +
+                          events.size () + " events");
+      System.out.println ("   " + misplaced + " off position, " +
+                          wrongEvents + " with the wrong events, " +
+                          stopped + " left stopped, " + stuck +
+                          " with keys stuck at the end");
+      return (misplaced == 0 && wrongEvents == 0 && stopped == 0 &&
+              stuck == 0);
+   }
+
+   static private Sequence makeSeekSequence (int notes, Random random)
+      throws InvalidMidiDataException
+   {
+      // Overlapping notes on a few channels, at a resolution and tempos
+      // where ticks don't fall on whole microseconds.
+      Sequence sequence = new Sequence (Sequence.PPQ, 480);
+      Track track = sequence.createTrack ();
+      long tick = 0;
+      for (int n = 0; n < notes; n++) {
+         int channel = random.nextInt (4);
+         int key     = 36 + random.nextInt (48);
+         long end    = tick + 1 + random.nextInt (960);
+         track.add (new MidiEvent (new ShortMessage (
+            ShortMessage.NOTE_ON, channel, key, 100), tick));
+         track.add (new MidiEvent (new ShortMessage (
+            ShortMessage.NOTE_OFF, channel, key, 0), end));
+         if (random.nextInt (100) == 0) {
+            int tempo = 300000 + random.nextInt (400000);
+            MetaMessage meta = new MetaMessage ();
+            meta.setMessage (0x51, new byte[] { (byte) (tempo >> 16),
+               (byte) (tempo >> 8), (byte) tempo }, 3);
+            track.add (new MidiEvent (meta, tick));
+         }
+         tick += random.nextInt (240);
+      }
+      return sequence;
+   }
+
+   // Follows which notes are held, the way Piano's playback keys do, and
+   // counts the events it hears.
+   static private class HeldNotes implements PlaybackEngine.Listener
+   {
+      public long[] notes  = new long[PlaybackEvents.STATE_WORDS];
+      public long   events = 0;
+
+      public void playbackEvent (int message)
+      {
+         events++;
+         int command = PlaybackEvents.getCommand (message);
+         if (command != ShortMessage.NOTE_ON &&
+             command != ShortMessage.NOTE_OFF)
+            return;
+         int key  = PlaybackEvents.getData1 (message);
+         int word = PlaybackEvents.getChannel (message) *
+                    PlaybackEvents.NOTE_WORDS + (key >> 6);
+         if (command == ShortMessage.NOTE_ON &&
+             PlaybackEvents.getData2 (message) > 0)
+            notes[word] |= 1l << (key & 63);
+         else
+            notes[word] &= ~(1l << (key & 63));
+      }
+
+      public int count ()
+      {
+         int count = 0;
+         for (int i = 0; i < notes.length; i++)
+            count += Long.bitCount (notes[i]);
+         return count;
+      }
+   }
+
+   // input: a Piano is played through its MidiInput from a loopback
+   // Transmitter, the way a MIDI keyboard plays it: random keys at random
+   // velocities, each let go a moment later.  Every note must be played.
+   // Live notes are played as they arrive rather than on the next frame,
+   // so on average they must take under MAX_INPUT_LATENCY to get there.
+   static public final long MAX_INPUT_LATENCY = Piano.FRAME_PERIOD / 4;
+
+   static private boolean checkInput (Options options) throws Exception
+   {
+      int  notes = Math.max (1, options.getInt ("notes", 2000));
+      long seed  = options.getLong ("seed", 0);
+      options.finish ();
+
+      Piano     piano    = new Piano ();
+      MidiInput input    = piano.getMidiInput ();
+      Loopback  loopback = new Loopback ();
+      input.connect (loopback);
+
+      Random random = new Random (seed);
+      for (int n = 0; n < notes; n++) {
+         int key = 21 + random.nextInt (88);
+         loopback.send (ShortMessage.NOTE_ON, key, 1 + random.nextInt (127));
+         Thread.sleep (random.nextInt (3));
+         loopback.send (ShortMessage.NOTE_ON, key, 0);
+         Thread.sleep (random.nextInt (3));
+      }
+
+      // Give the last few notes time to get there.
+      long deadline = System.nanoTime () + STALL_MILLIS * 1000000l;
+      while (input.getNoteCount () < notes && System.nanoTime () < deadline)
+         Thread.sleep (10);
+      input.close ();
+
+      // Report.
+      System.out.println ("MidiInput: " + input.getNoteCount () + " of " +
+                          notes + " notes played");
+      System.out.println ("   latency: " +
+                          round (input.getAverageLatency () / 1000.0) +
+                          "us on average, " +
+                          round (input.getMaxLatency () / 1000.0) +
+                          "us at most");
+      return (input.getNoteCount () == notes &&
+              input.getAverageLatency () <= MAX_INPUT_LATENCY);
+   }
+
+   // Stands in for a MIDI keyboard's transmitter.
+   static private class Loopback implements Transmitter
+   {
+      private Receiver receiver = null;
+
+      public void send (int command, int key, int velocity)
+         throws InvalidMidiDataException
+      {
+         if (receiver != null)
+            receiver.send (new ShortMessage (command, 0, key, velocity), -1);
+      }
+
+      public void setReceiver (Receiver receiver)
+      {
+         this.receiver = receiver;
+      }
+
+      public Receiver getReceiver ()
+      {
+         return receiver;
+      }
+
+      public void close ()
+      {
+         receiver = null;
+      }
+   }
+
+   // cache: a few files of random notes are each loaded into a
+   // SequenceCache, then loaded again, which must hit and hand back the
+   // same entry.  Then the first file is rewritten, which must miss.
+   // Finally the ceiling is cut to the largest entry, so only the file
+   // just loaded can stay: loading each file in turn misses (except the
+   // first, which is still there), and loading it again hits.
+   static private boolean checkCache (Options options) throws Exception
+   {
+      int  files = Math.max (2, options.getInt ("files", 8));
+      int  notes = Math.max (1, options.getInt ("notes", 2000));
+      long seed  = options.getLong ("seed", 0);
+      options.finish ();
+
+      Random random = new Random (seed);
+      String[] paths = new String[files];
+      for (int i = 0; i < files; i++) {
+         File file = File.createTempFile ("SelfCheck", ".mid");
+         file.deleteOnExit ();
+         MidiSystem.write (makeSeekSequence (notes, random), 0, file);
+         paths[i] = file.getPath ();
+      }
+
+      // First loads miss...
+      SequenceCache cache = new SequenceCache (Long.MAX_VALUE);
+      SequenceCache.Entry[] entries = new SequenceCache.Entry[files];
+      long largest = 0;
+      long start = System.nanoTime ();
+      for (int i = 0; i < files; i++) {
+         entries[i] = cache.load (paths[i]);
+         largest = Math.max (largest, entries[i].size);
+      }
+      long missTime = (System.nanoTime () - start) / files;
+
+      // ...and replays hit, with nothing parsed again.
+      long stale = 0;
+      start = System.nanoTime ();
+      for (int i = 0; i < files; i++)
+         if (cache.load (paths[i]) != entries[i])
+            stale++;
+      long hitTime = (System.nanoTime () - start) / files;
+
+      // A changed file is parsed again.  Its time is moved on too, in case
+      // it was rewritten within the file system's clock resolution.
+      File changed = new File (paths[0]);
+      long modified = changed.lastModified ();
+      Sequence rewritten = makeSeekSequence (notes + 1, random);
+      MidiSystem.write (rewritten, 0, changed);
+      changed.setLastModified (modified + 2000);
+      SequenceCache.Entry entry = cache.load (paths[0]);
+      if (entry == entries[0] ||
+          entry.events.size () != new PlaybackEvents (rewritten).size ())
+         stale++;
+      largest = Math.max (largest, entry.size);
+
+      // Hold one file at a time.
+      long overCapacity = 0;
+      cache.setCapacity (largest);
+      for (int i = 0; i < files; i++) {
+         cache.load (paths[i]);
+         cache.load (paths[i]);
+         if (cache.getSize () > cache.getCapacity ())
+            overCapacity++;
+      }
+      long hits   = files + 1 + files;
+      long misses = files + 1 + files - 1;
+
+      // Report.
+      System.out.println ("SequenceCache: " + files + " files of " + notes +
+                          " notes, " + cache.getHits () + " hits, " +
+                          cache.getMisses () + " misses (expected " +
+                          hits + " and " + misses + ")");
+      System.out.println ("   loaded in " + round (missTime / 1000000.0) +
+                          "ms, replayed in " + round (hitTime / 1000.0) +
+                          "us");
+      System.out.println ("   " + stale + " stale entries, " + overCapacity +
+                          " times over capacity");
+      return (cache.getHits () == hits && cache.getMisses () == misses &&
+              stale == 0 && overCapacity == 0);
+   }
+
+   // frames: a FrameScheduler runs at Piano's frame rate for a few seconds,
+   // with one frame halfway through stalling for several periods.  The
+   // frames run and skipped must add up to the periods that passed, to
+   // within a frame or two, so nothing drifts, and none may come right on
+   // the heels of the last one, so the missed frames weren't bunched up.
+   // Then the frame goes idle: no more may run until it's woken.
+   static public final long IDLE_MILLIS = 500;
+
+   static private boolean checkFrames (Options options)
+      throws InterruptedException
+   {
+      int seconds = Math.max (1, options.getInt ("seconds", 5));
+      int stall   = Math.max (2, options.getInt ("stall", 10));
+      options.finish ();
+
+      long period = Piano.FRAME_PERIOD;
+      Ticker ticker = new Ticker (period, seconds * 1000000000l / period / 2,
+                                  stall * period);
+      FrameScheduler scheduler =
+         new FrameScheduler (ticker, period, "SelfCheck frames");
+
+      // Run for a while, and count the periods that went by.
+      long start = System.nanoTime ();
+      scheduler.start ();
+      Thread.sleep (seconds * 1000l);
+      long periods = (System.nanoTime () - start) / period + 1;
+      long frames  = scheduler.getFrameCount ();
+      long skipped = scheduler.getSkippedFrames ();
+      long drift   = frames + skipped - periods;
+
+      // Go idle.  Once the frame in progress has seen that, nothing more
+      // should run...
+      ticker.idle = true;
+      Thread.sleep (4 * period / 1000000);
+      long idleFrames = scheduler.getFrameCount ();
+      Thread.sleep (IDLE_MILLIS);
+      idleFrames = scheduler.getFrameCount () - idleFrames;
+
+      // ...until we wake it.
+      ticker.idle = false;
+      long count = scheduler.getFrameCount ();
+      long woken = System.nanoTime ();
+      scheduler.wake ();
+      long deadline = woken + STALL_MILLIS * 1000000l;
+      while (scheduler.getFrameCount () == count &&
+             System.nanoTime () < deadline)
+         Thread.yield ();
+      woken = System.nanoTime () - woken;
+      boolean woke = (scheduler.getFrameCount () != count);
+      scheduler.stop ();
+
+      // Report.
+      System.out.println ("FrameScheduler: " + seconds + "s at " +
+                          period / 1000000 + "ms, stalled for " + stall +
+                          " periods: " + frames + " frames, " + skipped +
+                          " skipped, " + drift + " off");
+      System.out.println ("   frame time: " +
+         round (scheduler.getAverageFrameTime () / 1000.0) +
+         "us on average, " +
+         round (scheduler.getMaxFrameTime () / 1000.0) +
+         "us at most (the stall)");
+      System.out.println ("   " + ticker.bunched + " bunched, " +
+                          idleFrames + " while idle, " +
+                          (woke ? "woke in " + round (woken / 1000.0) + "us"
+                                : "never woke"));
+      return (Math.abs (drift) <= 2 && skipped >= stall - 1 &&
+              ticker.bunched == 0 && idleFrames == 0 && woke);
+   }
+
+   // Counts its frames, stalls once, and counts frames that came too soon
+   // after the last one.
+   static private class Ticker implements FrameScheduler.Frame
+   {
+      public volatile boolean idle    = false;
+      public volatile long    bunched = 0;
+      private float soon;
+      private long  frames = 0, stallAt, stallNanos;
+
+      public Ticker (long period, long stallAt, long stallNanos)
+      {
+         this.soon       = period / 100 / 1000000000f;
+         this.stallAt    = stallAt;
+         this.stallNanos = stallNanos;
+      }
+
+      public void frame (float interval)
+      {
+         if (interval < soon)
+            bunched++;
+         if (++frames == stallAt) {
+            // (Parking can end early, so make sure it's over.)
+            long until = System.nanoTime () + stallNanos;
+            long left  = stallNanos;
+            while (left > 0) {
+               LockSupport.parkNanos (left);
+               left = until - System.nanoTime ();
+            }
+         }
+      }
+
+      public boolean isIdle ()
+      {
+         return idle;
+      }
+
+      public void poll ()
+      {
+      }
+   }
+}
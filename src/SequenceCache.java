@@ -0,0 +1,141 @@
+import javax.sound.midi.*;
+import java.io.*;
+import java.util.*;
+
+// Least-recently-used cache of parsed MIDI files and their event tables, so
+// replaying a file doesn't read and parse it again.  Entries are keyed by
+// path and invalidated when the file's modification time or size changes.
+class SequenceCache
+{
+   // Default memory ceiling, in (estimated) bytes.
+   static public final long DEFAULT_CAPACITY = 16l << 20;
+
+   // Rough per-event cost of a parsed sequence: a MidiEvent, its message
+   // and the message's byte array.
+   static private final int EVENT_OVERHEAD = 64;
+
+   // A single parsed file.
+   static class Entry
+   {
+      final Sequence       sequence;
+      final PlaybackEvents events;
+      final long           modified, length, size;
+
+      Entry (Sequence sequence, PlaybackEvents events, long modified,
+             long length)
+      {
+         this.sequence = sequence;
+         this.events   = events;
+         this.modified = modified;
+         this.length   = length;
+         this.size     = estimateSize (sequence, events);
+      }
+   }
+
+   // Cached entries, least recently used first.
+   private LinkedHashMap<String, Entry> entries =
+      new LinkedHashMap<String, Entry> (16, 0.75f, true);
+   private long capacity;
+   private long size = 0;
+
+   // Statistics.
+   private long hits = 0, misses = 0;
+
+   public SequenceCache ()
+   {
+      this (DEFAULT_CAPACITY);
+   }
+
+   public SequenceCache (long capacity)
+   {
+      this.capacity = capacity;
+   }
+
+   public Entry load (String file)
+      throws IOException, InvalidMidiDataException
+   {
+      // Is the file cached, and is it still the same file?
+      File f = new File (file);
+      String key    = f.getCanonicalPath ();
+      long modified = f.lastModified ();
+      long length   = f.length ();
+      synchronized (this) {
+         Entry entry = entries.get (key);
+         if (entry != null && entry.modified == modified &&
+             entry.length == length) {
+            hits++;
+            return entry;
+         }
+         misses++;
+      }
+
+      // It isn't.  Parse it outside of our lock so other files can still
+      // be fetched in the meantime.
+      Sequence sequence = MidiLoader.load (file);
+      Entry entry = new Entry (sequence, new PlaybackEvents (sequence),
+                               modified, length);
+
+      // Remember it, dropping old entries to stay below our ceiling.
+      synchronized (this) {
+         Entry old = entries.put (key, entry);
+         if (old != null)
+            size -= old.size;
+         size += entry.size;
+         trim ();
+      }
+      return entry;
+   }
+
+   public synchronized void setCapacity (long capacity)
+   {
+      this.capacity = capacity;
+      trim ();
+   }
+
+   public synchronized long getCapacity ()
+   {
+      return capacity;
+   }
+
+   public synchronized long getSize ()
+   {
+      return size;
+   }
+
+   public synchronized long getHits ()
+   {
+      return hits;
+   }
+
+   public synchronized long getMisses ()
+   {
+      return misses;
+   }
+
+   public synchronized void clear ()
+   {
+      entries.clear ();
+      size = 0;
+   }
+
+   private void trim ()
+   {
+      // Evict least recently used entries until we fit.
+      Iterator<Entry> i = entries.values().iterator ();
+      while (size > capacity && i.hasNext ()) {
+         size -= i.next().size;
+         i.remove ();
+      }
+   }
+
+   static private long estimateSize (Sequence sequence, PlaybackEvents events)
+   {
+      long bytes = events.getMemoryUsage ();
+      Track[] tracks = sequence.getTracks ();
+      for (int i = 0; i < tracks.length; i++)
+         for (int j = 0; j < tracks[i].size(); j++)
+            bytes += EVENT_OVERHEAD +
+                     tracks[i].get(j).getMessage().getLength();
+      return bytes;
+   }
+}
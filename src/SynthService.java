@@ -0,0 +1,253 @@
+import javax.sound.midi.*;
+import java.util.Arrays;
+
+// The one synthesizer everything in the process plays through.  Opening a
+// software synthesizer loads a soundbank and starts an audio line and a
+// mixer thread, so we only ever want one.  Clients ask for a MIDI channel
+// of their own, and getVoiceUsage() tells how many voices each channel is
+// using (PianoPanel shows them by client).  MIDI files are played on
+// whatever channels the clients leave free (see mapChannels()).
+class SynthService
+{
+   // MIDI channels, and the one that plays percussion.
+   static public final int CHANNELS           = 16;
+   static public final int PERCUSSION_CHANNEL = 9;
+
+   static private SynthService instance = null;
+
+   // Our synthesizer, opened when the first client arrives and closed when
+   // the last one leaves.
+   private volatile Synthesizer synth = null;
+   private MidiChannel[] channels   = null;
+   private Receiver      receiver   = null;
+   private boolean       synthClock = false;
+
+   // Who owns each channel, and which instruments have been loaded.
+   private Client[]  owners = new Client[CHANNELS];
+   private int       clients = 0;
+   private boolean[] loaded  = new boolean[128];
+
+   // A client's hold on a channel.
+   public class Client
+   {
+      private String name;
+      private int    channel;
+
+      private Client (String name, int channel)
+      {
+         this.name    = name;
+         this.channel = channel;
+      }
+
+      public String getName ()
+      {
+         return name;
+      }
+
+      public int getChannel ()
+      {
+         return channel;
+      }
+
+      public MidiChannel getMidiChannel ()
+      {
+         return channels[channel];
+      }
+
+      public void close ()
+      {
+         release (this);
+      }
+   }
+
+   private SynthService ()
+   {
+   }
+
+   static public synchronized SynthService getInstance ()
+   {
+      if (instance == null)
+         instance = new SynthService ();
+      return instance;
+   }
+
+   public synchronized Client open (String name, int channel)
+      throws MidiUnavailableException
+   {
+      // Start our synthesizer if we're the first.
+      if (synth == null) {
+         Synthesizer s = MidiSystem.getSynthesizer ();
+         s.open ();
+         synth      = s;
+         channels   = s.getChannels ();
+         receiver   = s.getReceiver ();
+         synthClock = (s.getMicrosecondPosition () >= 0);
+      }
+
+      // Use the channel asked for if it's free.  Otherwise use the first
+      // free one, leaving percussion alone.
+      if (channel < 0 || channel >= CHANNELS || owners[channel] != null) {
+         channel = -1;
+         for (int i = 0; i < CHANNELS && channel < 0; i++)
+            if (i != PERCUSSION_CHANNEL && owners[i] == null)
+               channel = i;
+         if (channel < 0) {
+            if (clients == 0)
+               closeSynth ();
+            throw new MidiUnavailableException ("No free MIDI channels");
+         }
+      }
+
+      Client client = new Client (name, channel);
+      owners[channel] = client;
+      clients++;
+      return client;
+   }
+
+   public synchronized int[] mapChannels (int used)
+   {
+      // Work out where a file using the channels in 'used' (as bits)
+      // should play so it never touches a client's channel.  Channels keep
+      // their own numbers if they can, and the rest move to channels
+      // nobody's using.  Percussion can move too, as long as whoever plays
+      // the file selects the rhythm bank on its new channel (see
+      // PlaybackEngine).
+      int owned = 0;
+      for (int channel = 0; channel < CHANNELS; channel++)
+         if (owners[channel] != null)
+            owned |= 1 << channel;
+      int percussion = 1 << PERCUSSION_CHANNEL;
+      int moving = used & owned;
+      int kept   = used & ~moving;
+      int taken  = owned | used | percussion;
+
+      // Percussion goes first, so it's never the one left without a
+      // channel.  If we run out, melodic channels double up on the file's
+      // own channels, and percussion stays where it is.
+      int[] map = new int[CHANNELS];
+      for (int channel = 0; channel < CHANNELS; channel++)
+         map[channel] = channel;
+      if ((moving & percussion) != 0)
+         taken = move (map, PERCUSSION_CHANNEL, taken, PERCUSSION_CHANNEL);
+      int doubled = 0;
+      for (int channel = 0; channel < CHANNELS; channel++)
+         if ((moving & ~percussion & (1 << channel)) != 0)
+            taken = move (map, channel, taken,
+               nthChannel (kept & ~percussion, doubled++, channel));
+      return map;
+   }
+
+   static private int move (int[] map, int channel, int taken, int otherwise)
+   {
+      // Move 'channel' to the first channel not in 'taken' (as bits), or
+      // to 'otherwise' if they're all taken.  Returns the new 'taken'.
+      int to = Integer.numberOfTrailingZeros (~taken);
+      if (to >= CHANNELS) {
+         map[channel] = otherwise;
+         return taken;
+      }
+      map[channel] = to;
+      return taken | (1 << to);
+   }
+
+   static private int nthChannel (int channels, int n, int otherwise)
+   {
+      // The n'th (wrapping around) of 'channels', as bits.
+      int count = Integer.bitCount (channels);
+      if (count == 0)
+         return otherwise;
+      for (n %= count; n > 0; n--)
+         channels &= channels - 1;
+      return Integer.numberOfTrailingZeros (channels);
+   }
+
+   private synchronized void release (Client client)
+   {
+      // Free the client's channel, and our synthesizer if nobody's left.
+      if (owners[client.channel] != client)
+         return;
+      channels[client.channel].allNotesOff ();
+      owners[client.channel] = null;
+      if (--clients == 0)
+         closeSynth ();
+   }
+
+   private void closeSynth ()
+   {
+      synth.close ();
+      synth    = null;
+      channels = null;
+      receiver = null;
+      Arrays.fill (loaded, false);
+   }
+
+   public synchronized void loadInstrument (int program)
+   {
+      // Everyone shares our soundbank, so each instrument only needs
+      // loading once.
+      if (synth == null || program < 0 || program >= loaded.length ||
+          loaded[program])
+         return;
+      Soundbank bank = synth.getDefaultSoundbank ();
+      if (bank == null)
+         return;
+      Instrument[] instr = bank.getInstruments ();
+      if (program < instr.length && synth.loadInstrument (instr[program]))
+         loaded[program] = true;
+   }
+
+   public synchronized MidiChannel[] getChannels ()
+   {
+      return channels;
+   }
+
+   public synchronized Receiver getReceiver ()
+   {
+      return receiver;
+   }
+
+   public boolean hasClock ()
+   {
+      // Does our synthesizer keep its own time, and so honor timestamps?
+      return (synth != null && synthClock);
+   }
+
+   public long getMicrosecondPosition ()
+   {
+      // Our synthesizer's own clock if it has one, or the system timer.
+      Synthesizer s = synth;
+      if (s != null && synthClock)
+         return s.getMicrosecondPosition ();
+      return System.nanoTime () / 1000;
+   }
+
+   public synchronized Client[] getClients ()
+   {
+      // Everyone with a channel, in channel order.
+      Client[] list = new Client[clients];
+      int n = 0;
+      for (int channel = 0; channel < CHANNELS; channel++)
+         if (owners[channel] != null)
+            list[n++] = owners[channel];
+      return list;
+   }
+
+   public synchronized int[] getVoiceUsage ()
+   {
+      // Count the voices sounding on each channel.
+      int[] usage = new int[CHANNELS];
+      if (synth == null)
+         return usage;
+      VoiceStatus[] voices = synth.getVoiceStatus ();
+      for (int i = 0; i < voices.length; i++)
+         if (voices[i].active && voices[i].channel >= 0 &&
+             voices[i].channel < CHANNELS)
+            usage[voices[i].channel]++;
+      return usage;
+   }
+
+   public synchronized int getMaxPolyphony ()
+   {
+      return (synth == null) ? 0 : synth.getMaxPolyphony ();
+   }
+}
@@ -1,66 +1,44 @@
 import javax.swing.*;
-import java.util.*;
 import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics;
-import java.awt.RenderingHints;
-
-public class Visual extends JPanel
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+// Shows a Visualizer engine on screen.  Each step, the engine is moved
+// forward and drawn off-screen, and the new frame is swapped in for the
+// one being shown.  Note events pass straight through, so a Visual can be
+// used anywhere an engine can.
+public class Visual extends JPanel implements Visualizer
 {
    // Static definitions.
    public static final int DEFAULT_WIDTH  = 100;
    public static final int DEFAULT_HEIGHT = 100;
 
-   // Internal variables.
+   // What we're showing.
+   private Visualizer engine;
+
+   // Size we draw at, and the size we've been asked to be.
    private int width;
    private int height;
+   private volatile int newWidth;
+   private volatile int newHeight;
 
-   // Polygon tracking.
-   private float[]      polyOn  = new float[Piano.TONE_RANGE];
-   private float[]      polyDir = new float[Piano.TONE_RANGE];
-   private VisualPoly[] poly = new VisualPoly[Piano.TONE_RANGE];
-   private VisualPoly   mainPoly;
-
-   public void run (float t)
-   {
-      int count = 0;
-
-      // Update polygon intensities.
-      for (int i = 0; i < Piano.TONE_RANGE; i++) {
-         // Skip polygons that don't exist.
-         if (poly[i] == null)
-            continue;
-
-         // Modify intensity based on tone (higher patch = faster).
-         float speed = (float) Math.pow (2.00, (double) (i - 32) / 64.00);
-         polyOn[i] += polyDir[i] * t * speed;
-
-         // If we were increasing intensity, drop once we hit the peak.
-         if (polyDir[i] > 0.00f) {
-            if (polyOn[i] >= 1.00f) {
-               polyOn[i] = 1.00f;
-               polyDir[i] = -0.125f;
-            }
-         }
-         // If we were decreasing intensity, delete polygons that hit zero.
-         else if (polyDir[i] < 0.00f && polyOn[i] <= 0.00f) {
-            poly[i] = null;
-            continue;
-         }
-
-         // Move polygons that are active.
-         poly[i].setBrightness (polyOn[i]);
-         poly[i].polyMove ();
-         count++;
-      }
+   // Frames are drawn off-screen into 'back' by step(), then swapped with
+   // 'front', which is all paintComponent() ever draws.
+   private BufferedImage front, back;
+   private int[]         frontPixels, backPixels;
 
-      // Update the main polygon if there are other polygons to draw.
-      if (count > 0) {
-         rebuildMainPoly ();
-         mainPoly.polyMove ();
-      }
-      repaint ();
-   }
+   // Where finished frames are copied, if anywhere.
+   private volatile FrameRecorder recorder = null;
+
+   // Last color handed out by averageColor().
+   private Color avgColor = Color.black;
+
+   // Render timing statistics, in nanoseconds.
+   private volatile long renders = 0;
+   private volatile long lastRenderTime  = 0;
+   private volatile long totalRenderTime = 0;
 
    public Visual ()
    {
@@ -69,130 +47,162 @@ public class Visual extends JPanel
 
    public Visual (int width, int height)
    {
-      // Set internal variables.
-      this.width = width;
-      this.height = height;
+      this (width, height, new PolygonVisualizer ());
+   }
+
+   public Visual (int width, int height, long seed)
+   {
+      this (width, height, new PolygonVisualizer (seed));
+   }
 
-      // Initialze our component's size and background.
-      setSize (getPreferredSize ());
+   public Visual (int width, int height, Visualizer engine)
+   {
+      this.engine = engine;
+
+      // Initialze our component's size and background.  We can be resized
+      // to anything later.
+      setPreferredSize (new Dimension (width, height));
+      setSize (width, height);
       setOpaque (true);
       setBackground (Color.BLACK);
+      resizeBuffers (width, height);
+   }
 
-      // We always have a single, main polygon to represent all keys.
-      mainPoly = new VisualPoly (this, Color.black);
+   public Visualizer getEngine ()
+   {
+      return engine;
    }
 
-   public void paintComponent (Graphics g)
+   public void step (float t)
    {
-      // Set background.
-      super.paintComponent (g);
-      setBackground (averageColor().darker());
+      engine.step (t);
+
+      // Resize our buffers if our size has changed, then draw.
+      long start = System.nanoTime ();
+      if (newWidth != width || newHeight != height)
+         resizeBuffers (newWidth, newHeight);
+      engine.render (backPixels, width, height);
+      FrameRecorder recorder = this.recorder;
+      if (recorder != null)
+         recorder.record (backPixels, width, height);
+
+      // Show the new frame.
+      synchronized (this) {
+         BufferedImage image = front;
+         int[] pixels = frontPixels;
+         front = back;
+         frontPixels = backPixels;
+         back = image;
+         backPixels = pixels;
+      }
 
-      // Draw all polygons.
-      for (int i = 0; i < Piano.TONE_RANGE; i++)
-         if (polyOn[i] > 0)
-            poly[i].paintComponent (g);
-      mainPoly.paintComponent (g);
+      long time = System.nanoTime () - start;
+      lastRenderTime   = time;
+      totalRenderTime += time;
+      renders++;
+      repaint ();
    }
 
-   public int getWidth ()
+   public void render (int[] raster, int width, int height)
    {
-      return width;
+      engine.render (raster, width, height);
    }
 
-   public int getHeight ()
+   public void setRecorder (FrameRecorder recorder)
    {
-      return height;
+      this.recorder = recorder;
    }
 
-   public Dimension getPreferredSize ()
+   public FrameRecorder getRecorder ()
    {
-      return new Dimension (getWidth(), getHeight());
+      return recorder;
    }
 
-   public float noteToHue (int note)
+   private void resizeBuffers (int width, int height)
    {
-      // Translate note to a hue clamped from (0 .. < 1)
-      int hue = note;
-      if (hue % 2 == 1)
-         hue += 6;
-      hue %= 12;
-      return (float) hue / 12f;
+      // Make new buffers, starting out black.
+      width  = Math.max (1, width);
+      height = Math.max (1, height);
+      BufferedImage image1 = new BufferedImage (width, height,
+                                                BufferedImage.TYPE_INT_RGB);
+      BufferedImage image2 = new BufferedImage (width, height,
+                                                BufferedImage.TYPE_INT_RGB);
+      synchronized (this) {
+         front = image1;
+         back  = image2;
+         frontPixels = ((DataBufferInt) front.getRaster ()
+                        .getDataBuffer ()).getData ();
+         backPixels  = ((DataBufferInt) back.getRaster ()
+                        .getDataBuffer ()).getData ();
+         this.width  = width;
+         this.height = height;
+      }
    }
 
-   public void noteOn (int note)
+   public long getLastRenderTime ()
    {
-      // Create a new polygon with the appropriate color.
-      Color color = Color.getHSBColor (noteToHue(note), 1f, 0.4f);
-      poly[note] = new VisualPoly (this, color);
+      return lastRenderTime;
+   }
+
+   public long getAverageRenderTime ()
+   {
+      long count = renders;
+      return (count == 0) ? 0 : totalRenderTime / count;
+   }
 
-      // Fade in rapidly from (at least) 0% opacity.
-      polyDir[note] = 15.00f;
-      if (polyOn[note] < 0.00f)
-         polyOn[note] = 0.00f;
+   public void setBounds (int x, int y, int width, int height)
+   {
+      // The next frame will be drawn at our new size.
+      super.setBounds (x, y, width, height);
+      newWidth  = width;
+      newHeight = height;
+   }
+
+   public void paintComponent (Graphics g)
+   {
+      // Everything's already drawn; just copy the latest frame.  If we've
+      // been resized since, stretch it until the next one's ready.
+      synchronized (this) {
+         if (front.getWidth () == getWidth () &&
+             front.getHeight () == getHeight ())
+            g.drawImage (front, 0, 0, null);
+         else
+            g.drawImage (front, 0, 0, getWidth (), getHeight (), null);
+      }
+   }
+
+   public void noteOn (int note)
+   {
+      engine.noteOn (note);
    }
 
    public void noteOff (int note)
    {
-      // Gradually fade out.
-      polyDir[note] = -2.00f;
+      engine.noteOff (note);
    }
 
    public void allNotesOff ()
    {
-      for (int i = 0; i < Piano.TONE_RANGE; i++)
-         noteOff (i);
+      engine.allNotesOff ();
    }
 
-   public void rebuildMainPoly ()
+   public boolean isIdle ()
    {
-      // Use a color brighter than our background and other polygons.
-      mainPoly.setColor (averageColor().brighter());
+      return engine.isIdle ();
+   }
+
+   public int getColor ()
+   {
+      return engine.getColor ();
    }
 
    public Color averageColor ()
    {
-      float t, r, b = 0f, extra = 0f;
-      float x = 0f, y = 0f;
-      Color color;
-
-      // Determine (x, y) position on a color wheel using all polygons.
-      for (int i = 0; i < Piano.TONE_RANGE; i++) {
-         if (polyOn[i] <= 0.00)
-            continue;
-
-         // Get polygon color and convert it to HSB.
-         float[] hsb = new float[3];
-         color = poly[i].getColor ();
-         Color.RGBtoHSB (color.getRed(), color.getGreen(),
-                         color.getBlue(), hsb);
-
-         // Convert HSB to XYB and move our color wheel.
-         x += Math.cos (hsb[0] * Math.PI * 2f) * (float) polyOn[i];
-         y += Math.sin (hsb[0] * Math.PI * 2f) * (float) polyOn[i];
-         b += polyOn[i];
-      }
-      if (b <= 0.00)
-         return Color.black;
-
-      // Divide (x, y) by magnitude.
-      x /= b;
-      y /= b;
-
-      // t(theta) = hue,
-      // r        = radius.
-      t = (float) (Math.atan2 (y, x) / Math.PI / 2f);
-      if (t > -0.01f && t < 0.01f)
-         t = 0;
-      r = (float) (Math.sqrt (x * x + y * y));
-
-      // If the intensity is greater than 1, scale up to 1.00 logarithmically.
-      if (b > 1f)
-         b = (((b * 2f) - 1f) / (b * 2f));
-      else
-         b /= 2f;
-
-      // We have our HSB value - return an RGB color.
-      return Color.getHSBColor (t, r, (float) b);
+      // Only make a new Color when the engine's has changed.
+      Color color = avgColor;
+      int rgb = engine.getColor ();
+      if ((color.getRGB () & 0xFFFFFF) != rgb)
+         avgColor = color = new Color (rgb);
+      return color;
    }
 }
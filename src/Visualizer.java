@@ -0,0 +1,25 @@
+// A visualizer engine: something that turns notes into pictures.  Engines
+// don't know about windows or timers; they're told about notes, stepped
+// forward in time and asked to draw into a plain array of pixels.  That
+// lets the same engine be shown in a window, rendered offline or
+// benchmarked.
+interface Visualizer
+{
+   // Note events.  Notes are key numbers from 0 to Piano.TONE_RANGE - 1.
+   void noteOn (int note);
+   void noteOff (int note);
+   void allNotesOff ();
+
+   // Advance the picture by 'interval' seconds.
+   void step (float interval);
+
+   // Draw the current picture into 'raster', 'width' x 'height' pixels of
+   // packed RGB (0xRRGGBB), one row after another.
+   void render (int[] raster, int width, int height);
+
+   // The picture's overall color, as packed RGB.
+   int getColor ();
+
+   // Return 'true' if the picture won't change until another note event.
+   boolean isIdle ();
+}
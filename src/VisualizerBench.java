@@ -0,0 +1,127 @@
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+
+// Replays a MIDI file through a visualizer engine without a display or
+// sound, one frame at a time, and reports how long stepping and rendering
+// took and how much memory each frame allocated.  Used to compare engines.
+class VisualizerBench
+{
+   // Defaults.
+   static public final int    DEFAULT_FPS    = 60;
+   static public final int    DEFAULT_WIDTH  = 1280;
+   static public final int    DEFAULT_HEIGHT = 720;
+   static public final String DEFAULT_ENGINE = "PolygonVisualizer";
+
+   // Settings.
+   private int    fps    = DEFAULT_FPS;
+   private int    width  = DEFAULT_WIDTH;
+   private int    height = DEFAULT_HEIGHT;
+   private String engine = DEFAULT_ENGINE;
+   private boolean softwareRendering = false;
+   private ChannelFilter filter = new ChannelFilter ();
+
+   // HotSpot's per-thread allocation counter, if we have one.
+   static private Object threads = null;
+   static private Method allocatedBytes = null;
+
+   public void setFrameRate (int fps)
+   {
+      this.fps = Math.max (1, fps);
+   }
+
+   public void setSize (int width, int height)
+   {
+      this.width  = Math.max (1, width);
+      this.height = Math.max (1, height);
+   }
+
+   public void setEngine (String engine)
+   {
+      // Any class implementing Visualizer with a no-argument constructor.
+      this.engine = engine;
+   }
+
+   public void setSoftwareRendering (boolean softwareRendering)
+   {
+      // For engines that can draw either with Java2D or with Rasterizer.
+      this.softwareRendering = softwareRendering;
+   }
+
+   public ChannelFilter getChannelFilter ()
+   {
+      // Which channels reach the engine.
+      return filter;
+   }
+
+   public void run (String midiFile) throws Exception
+   {
+      // Load our file and our engine.
+      PlaybackEvents events = new PlaybackEvents (MidiLoader.load (midiFile));
+      Visualizer visualizer = (Visualizer)
+         Class.forName (engine).getDeclaredConstructor ().newInstance ();
+      if (visualizer instanceof PolygonVisualizer)
+         ((PolygonVisualizer) visualizer).setSoftwareRendering (
+            softwareRendering);
+      int[] raster = new int[width * height];
+
+      // Play the file on a virtual clock with no synthesizer.
+      PlaybackEngine playback = new PlaybackEngine (null,
+         new NoteTracker (visualizer, filter), false);
+      playback.load (events);
+      playback.start (0);
+
+      // Time every frame.  Allocation is measured across everything the
+      // frame does, including dispatching its notes.
+      long last = (events.getLengthMicros () * fps + 999999) / 1000000;
+      long eventTime = 0, stepTime = 0, renderTime = 0;
+      long allocStart = getAllocatedBytes ();
+      for (long frame = 0; frame < last; frame++) {
+         long start = System.nanoTime ();
+         playback.advance ((frame + 1) * 1000000l / fps - 1);
+         eventTime += System.nanoTime () - start;
+         start = System.nanoTime ();
+         visualizer.step (1f / fps);
+         long mid = System.nanoTime ();
+         visualizer.render (raster, width, height);
+         long end = System.nanoTime ();
+         stepTime   += mid - start;
+         renderTime += end - mid;
+      }
+      long allocated = getAllocatedBytes () - allocStart;
+
+      // Report.
+      long frames = Math.max (1, last);
+      System.out.println (engine + (softwareRendering ? " (software)" : "") +
+                          ", " + width + "x" + height + ", " + last +
+                          " frames at " + fps + "fps");
+      System.out.println ("   events: " + eventTime / frames + " ns/frame");
+      System.out.println ("   step:   " + stepTime / frames + " ns/frame");
+      System.out.println ("   render: " + renderTime / frames + " ns/frame");
+      if (allocStart < 0)
+         System.out.println ("   allocation: unavailable");
+      else
+         System.out.println ("   allocation: " + allocated / frames +
+                             " bytes/frame");
+   }
+
+   static public long getAllocatedBytes ()
+   {
+      // Bytes allocated so far by the calling thread.  Per-thread
+      // allocation counts are a HotSpot extension, so look for them by
+      // name (once).  Returns -1 if they aren't there.
+      try {
+         if (allocatedBytes == null) {
+            Class<?> type = Class.forName (
+               "com.sun.management.ThreadMXBean");
+            threads = ManagementFactory.getThreadMXBean ();
+            allocatedBytes = type.getMethod ("getThreadAllocatedBytes",
+                                             long.class);
+         }
+         return (Long) allocatedBytes.invoke (threads,
+            Thread.currentThread ().getId ());
+      }
+      catch (Exception e) {
+         return -1;
+      }
+   }
+}
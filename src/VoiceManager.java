@@ -0,0 +1,137 @@
+import javax.sound.midi.MidiChannel;
+
+// Sits between the live keyboard and its MIDI channel, keeping the number
+// of notes sounding at once under a ceiling.  When a new note would go
+// over, the quietest note is stolen to make room for it, the oldest one
+// first if several are as quiet.  Velocities are clamped into MIDI's range
+// on the way through.
+//
+// Only the thread playing notes should call noteOn(), noteOff() and
+// setChannel(); the counts may be read from anywhere.
+class VoiceManager
+{
+   // Defaults.
+   static public final int DEFAULT_POLYPHONY = 32;
+   static public final int DEFAULT_VELOCITY  = 100;
+
+   // MIDI note numbers run from 0 to NOTES - 1.
+   static public final int NOTES = 128;
+
+   // Where notes go.
+   private MidiChannel channel;
+   private int         polyphony = DEFAULT_POLYPHONY;
+
+   // Sounding notes: their velocity (0 if not sounding) and when they
+   // started, as a count of notes played.
+   private int[]  velocity = new int[NOTES];
+   private long[] started  = new long[NOTES];
+   private long   played   = 0;
+
+   // Live counts.
+   private volatile int  active = 0;
+   private volatile long stolen = 0;
+
+   public VoiceManager (MidiChannel channel)
+   {
+      this.channel = channel;
+   }
+
+   public void setChannel (MidiChannel channel)
+   {
+      // Anything still sounding belongs to the old channel; stop it there.
+      if (channel == this.channel)
+         return;
+      allNotesOff ();
+      this.channel = channel;
+   }
+
+   public void setPolyphony (int polyphony)
+   {
+      // Takes effect from the next note on.
+      this.polyphony = Math.max (1, Math.min (NOTES, polyphony));
+   }
+
+   public int getPolyphony ()
+   {
+      return polyphony;
+   }
+
+   static public int clampVelocity (int velocity)
+   {
+      // Zero would be a note off, so the quietest note is 1.
+      return Math.max (1, Math.min (127, velocity));
+   }
+
+   public void noteOn (int key)
+   {
+      noteOn (key, DEFAULT_VELOCITY);
+   }
+
+   public void noteOn (int key, int velocity)
+   {
+      if (channel == null || key < 0 || key >= NOTES)
+         return;
+
+      // Playing a note that's already sounding restarts it.  Otherwise,
+      // make room for it.
+      if (this.velocity[key] != 0)
+         stop (key);
+      else if (active >= polyphony) {
+         stop (findVictim ());
+         stolen++;
+      }
+
+      velocity = clampVelocity (velocity);
+      this.velocity[key] = velocity;
+      started[key] = played++;
+      active++;
+      channel.noteOn (key, velocity);
+   }
+
+   public void noteOff (int key)
+   {
+      if (channel == null || key < 0 || key >= NOTES)
+         return;
+      if (velocity[key] != 0)
+         stop (key);
+   }
+
+   public void allNotesOff ()
+   {
+      for (int key = 0; key < NOTES && active > 0; key++)
+         if (velocity[key] != 0)
+            stop (key);
+   }
+
+   private int findVictim ()
+   {
+      // The quietest note, and the oldest of those.
+      int victim = -1;
+      for (int key = 0; key < NOTES; key++) {
+         if (velocity[key] == 0)
+            continue;
+         if (victim < 0 || velocity[key] < velocity[victim] ||
+             (velocity[key] == velocity[victim] &&
+              started[key] < started[victim]))
+            victim = key;
+      }
+      return victim;
+   }
+
+   private void stop (int key)
+   {
+      velocity[key] = 0;
+      active--;
+      channel.noteOff (key);
+   }
+
+   public int getActiveVoices ()
+   {
+      return active;
+   }
+
+   public long getStolenVoices ()
+   {
+      return stolen;
+   }
+}